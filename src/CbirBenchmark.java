@@ -0,0 +1,962 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.Filter;
+import mpi.cbg.fly.FloatArray2D;
+import mpi.cbg.fly.FloatArray2DSIFT;
+
+/**
+ * Micro benchmarks for the hot spots of the CBIR pipeline.
+ *
+ * usage: java CbirBenchmark conversion [image]
+ *        java CbirBenchmark descriptors
+ *        java CbirBenchmark filter [image]
+ *        java CbirBenchmark kmeans [threads]
+ *        java CbirBenchmark minibatch [descriptors]
+ *        java CbirBenchmark seeding [minCount]
+ *        java CbirBenchmark bounds [minCount]
+ *        java CbirBenchmark tree [branching] [depth]
+ *        java CbirBenchmark outofcore [descriptors]
+ *        java CbirBenchmark kdforest [trees]
+ *        java CbirBenchmark pq [subspaces]
+ *        java CbirBenchmark retrieval [images]
+ *        java CbirBenchmark assign [words]
+ *        java CbirBenchmark checkpoint [iteration]
+ *        java CbirBenchmark sift [image]
+ *
+ * Without an image file a random 1024x768 test image is used.
+ */
+public class CbirBenchmark {
+
+	// how long each measurement should run at least
+	private static final long MEASURE_MS = 2000;
+
+	public static void main(String[] _args) throws Exception {
+		String name = _args.length > 0 ? _args[0] : "conversion";
+		if ("kmeans".equals(name)) {
+			kmeans(100000, 300, _args.length > 1 ? Integer.parseInt(_args[1])
+					: Runtime.getRuntime().availableProcessors());
+			return;
+		}
+		if ("tree".equals(name)) {
+			tree(200000, _args.length > 1 ? Integer.parseInt(_args[1]) : 10,
+					_args.length > 2 ? Integer.parseInt(_args[2]) : 3);
+			return;
+		}
+		if ("assign".equals(name)) {
+			assign(2000, _args.length > 1 ? Integer.parseInt(_args[1]) : 300);
+			return;
+		}
+		if ("kdforest".equals(name)) {
+			kdForest(1000, _args.length > 1 ? Integer.parseInt(_args[1]) : 4);
+			return;
+		}
+		if ("pq".equals(name)) {
+			productQuantizer(5000, _args.length > 1 ? Integer
+					.parseInt(_args[1]) : 16);
+			return;
+		}
+		if ("retrieval".equals(name)) {
+			retrieval(_args.length > 1 ? Integer.parseInt(_args[1]) : 200000,
+					10000, 200);
+			return;
+		}
+		if ("checkpoint".equals(name)) {
+			checkpoint(100000, 300, _args.length > 1 ? Integer
+					.parseInt(_args[1]) : 3);
+			return;
+		}
+		if ("outofcore".equals(name)) {
+			outOfCore(_args.length > 1 ? Integer.parseInt(_args[1]) : 1000000,
+					100);
+			return;
+		}
+		if ("bounds".equals(name)) {
+			bounds(100000, 300, _args.length > 1 ? Integer.parseInt(_args[1])
+					: 5);
+			return;
+		}
+		if ("seeding".equals(name)) {
+			seeding(100000, 300, _args.length > 1 ? Integer
+					.parseInt(_args[1]) : 5);
+			return;
+		}
+		if ("minibatch".equals(name)) {
+			minibatch(_args.length > 1 ? Integer.parseInt(_args[1]) : 500000,
+					300);
+			return;
+		}
+		BufferedImage source = _args.length > 1 ? ImageIO.read(new File(
+				_args[1])) : randomImage(1024, 768);
+
+		if ("conversion".equals(name)) {
+			conversion(source);
+		} else if ("descriptors".equals(name)) {
+			descriptors(100000, 300);
+		} else if ("filter".equals(name)) {
+			filter(source);
+		} else if ("sift".equals(name)) {
+			sift(source);
+		} else {
+			System.err.println("unknown benchmark " + name);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compares the raster-direct grayscale conversion with the getRGB path
+	 * for each supported image type
+	 */
+	static void conversion(BufferedImage source) throws Exception {
+		int[] types = { BufferedImage.TYPE_INT_RGB,
+				BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+				BufferedImage.TYPE_BYTE_GRAY };
+		String[] names = { "INT_RGB", "INT_ARGB", "3BYTE_BGR", "BYTE_GRAY" };
+
+		System.out.println("ImageToFloatArray2D " + source.getWidth() + "x"
+				+ source.getHeight());
+		for (int t = 0; t < types.length; t++) {
+			final BufferedImage image = convert(source, types[t]);
+
+			FloatArray2D fast = CbirWithSift.ImageToFloatArray2D(image);
+			FloatArray2D generic = CbirWithSift.ImageToFloatArray2DGeneric(image);
+			for (int i = 0; i < fast.data.length; i++) {
+				if (Float.floatToIntBits(fast.data[i]) != Float
+						.floatToIntBits(generic.data[i]))
+					throw new IllegalStateException(names[t]
+							+ ": different value at " + i);
+			}
+
+			double fastMs = measure(new Task() {
+				public void run() throws Exception {
+					CbirWithSift.ImageToFloatArray2D(image);
+				}
+			});
+			double genericMs = measure(new Task() {
+				public void run() throws Exception {
+					CbirWithSift.ImageToFloatArray2DGeneric(image);
+				}
+			});
+			System.out.println(String.format(
+					"%-10s getRGB %8.3fms  raster %8.3fms  speedup %5.1fx",
+					names[t], genericMs, fastMs, genericMs / fastMs));
+		}
+	}
+
+	/**
+	 * Compares heap use and the nearest centroid loop of Feature objects
+	 * and a DescriptorMatrix
+	 */
+	static void descriptors(int n, int k) throws Exception {
+		int dim = CbirWithSift.descriptorLength();
+		Random rnd = new Random(0);
+
+		long before = usedMemory();
+		final Feature[] features = new Feature[n];
+		for (int i = 0; i < n; i++) {
+			float[] descriptor = new float[dim];
+			for (int d = 0; d < dim; d++)
+				descriptor[d] = rnd.nextFloat();
+			features[i] = new Feature(1, 0, new float[2], descriptor);
+		}
+		long featureBytes = usedMemory() - before;
+
+		before = usedMemory();
+		final DescriptorMatrix matrix = DescriptorMatrix.fromFeatures(Arrays
+				.asList(features));
+		long matrixBytes = usedMemory() - before;
+
+		final Feature[] centroids = new Feature[k];
+		final float[] packed = new float[k * dim];
+		for (int c = 0; c < k; c++) {
+			centroids[c] = features[rnd.nextInt(n)];
+			System.arraycopy(centroids[c].descriptor, 0, packed, c * dim, dim);
+		}
+
+		double featureMs = measure(new Task() {
+			public void run() {
+				for (int i = 0; i < features.length; i++) {
+					float best = Float.MAX_VALUE;
+					for (int c = 0; c < centroids.length; c++)
+						best = Math.min(best, features[i]
+								.descriptorDistance(centroids[c]));
+				}
+			}
+		});
+		double matrixMs = measure(new Task() {
+			public void run() {
+				for (int i = 0; i < matrix.size(); i++) {
+					float best = Float.MAX_VALUE;
+					for (int c = 0; c < centroids.length; c++)
+						best = Math.min(best, matrix.distance(i, packed, c
+								* matrix.dimension()));
+				}
+			}
+		});
+
+		System.out.println(n + " descriptors, " + k + " centroids");
+		System.out.println(String.format(
+				"Feature[]         %8.1fMB  assignment %8.1fms",
+				featureBytes / 1e6, featureMs));
+		System.out.println(String.format(
+				"DescriptorMatrix  %8.1fMB  assignment %8.1fms",
+				matrixBytes / 1e6, matrixMs));
+	}
+
+	/**
+	 * Runs KMeans sequentially and on a pool, both must give the same
+	 * visual words for the same seed
+	 */
+	static void kmeans(int n, final int k, int threads) throws Exception {
+		int dim = CbirWithSift.descriptorLength();
+		Random rnd = new Random(0);
+		final DescriptorMatrix points = new DescriptorMatrix(dim, n);
+		float[] descriptor = new float[dim];
+		for (int i = 0; i < n; i++) {
+			for (int d = 0; d < dim; d++)
+				descriptor[d] = rnd.nextFloat();
+			points.add(0, 0, 1, 0, descriptor, 0);
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		List<VisualWord> serial = new KMeans(points, k, 5, 1, null).run();
+		List<VisualWord> parallel = new KMeans(points, k, 5, 1, pool).run();
+		for (int c = 0; c < k; c++) {
+			if (!Arrays.equals(serial.get(c).centroied.descriptor, parallel
+					.get(c).centroied.descriptor)
+					|| !serial.get(c).verificationValue.equals(parallel
+							.get(c).verificationValue))
+				throw new IllegalStateException("different visual word " + c);
+		}
+
+		double serialMs = measure(new Task() {
+			public void run() {
+				new KMeans(points, k, 5, 1, null).run();
+			}
+		});
+		double parallelMs = measure(new Task() {
+			public void run() {
+				new KMeans(points, k, 5, 1, pool).run();
+			}
+		});
+		pool.shutdown();
+
+		System.out.println("KMeans " + n + " descriptors, " + k
+				+ " centroids");
+		System.out.println(String.format(
+				"serial %8.1fms  %d threads %8.1fms  speedup %5.1fx",
+				serialMs, threads, parallelMs, serialMs / parallelMs));
+	}
+
+	/**
+	 * Compares time and mean squared error of the full and the mini-batch
+	 * k-means on descriptors scattered around k random centers
+	 */
+	static void minibatch(int n, int k) throws Exception {
+		DescriptorMatrix points = scattered(n, k);
+
+		System.out.println("k-means " + n + " descriptors, " + k
+				+ " centroids");
+		long start = System.nanoTime();
+		List<VisualWord> full = new KMeans(points, k, 5, 1, null).run();
+		report("full", (System.nanoTime() - start) / 1e6, points, full);
+		start = System.nanoTime();
+		List<VisualWord> mini = new KMeans(points, k, 5, 1, null)
+				.runMiniBatch(1000, 300, 1.0f, 10);
+		report("mini-batch", (System.nanoTime() - start) / 1e6, points, mini);
+	}
+
+	/**
+	 * Compares the start centroids of the seedings by the iterations and
+	 * reseeds the full k-means needs, each seeding must give the same
+	 * visual words on a pool as sequentially
+	 */
+	static void seeding(int n, int k, int minCount) throws Exception {
+		DescriptorMatrix points = scattered(n, k);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		String[] names = { "random", "k-means++", "k-means||" };
+		int[] seedings = { KMeans.SEEDING_RANDOM, KMeans.SEEDING_PLUS_PLUS,
+				KMeans.SEEDING_PARALLEL };
+
+		System.out.println("k-means " + n + " descriptors, " + k
+				+ " centroids, minCount " + minCount);
+		for (int s = 0; s < seedings.length; s++) {
+			KMeans parallel = new KMeans(points, k, minCount, 1, pool);
+			parallel.setSeeding(seedings[s]);
+			List<VisualWord> expected = parallel.run();
+
+			KMeans kmeans = new KMeans(points, k, minCount, 1, null);
+			kmeans.setSeeding(seedings[s]);
+			long start = System.nanoTime();
+			List<VisualWord> words = kmeans.run();
+			double ms = (System.nanoTime() - start) / 1e6;
+			for (int c = 0; c < k; c++) {
+				if (!Arrays.equals(expected.get(c).centroied.descriptor, words
+						.get(c).centroied.descriptor))
+					throw new IllegalStateException(names[s]
+							+ ": different visual word " + c);
+			}
+
+			System.out.println(String.format(
+					"%-10s %3d iterations %3d reseed rounds %4d reseeded",
+					names[s], kmeans.getIterations(), kmeans
+							.getReseedRounds(), kmeans.getReseeded()));
+			report(names[s], ms, points, words);
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * Runs the full k-means with and without the triangle inequality
+	 * bounds, both must give the same visual words
+	 */
+	static void bounds(int n, int k, int minCount) throws Exception {
+		DescriptorMatrix points = scattered(n, k);
+		System.out.println("k-means " + n + " descriptors, " + k
+				+ " centroids, minCount " + minCount);
+
+		List<List<VisualWord>> results = new ArrayList<List<VisualWord>>();
+		for (boolean bounds : new boolean[] { false, true }) {
+			KMeans kmeans = new KMeans(points, k, minCount, 1, null);
+			kmeans.setSeeding(KMeans.SEEDING_RANDOM);
+			kmeans.setBounds(bounds);
+			long start = System.nanoTime();
+			results.add(kmeans.run());
+			double ms = (System.nanoTime() - start) / 1e6;
+			System.out.println(String.format(
+					"bounds %-5s %8.1fms %3d iterations %12d distances %12d skipped",
+					bounds, ms, kmeans.getIterations(), kmeans
+							.getComputedDistances(), kmeans
+							.getSkippedDistances()));
+		}
+		for (int c = 0; c < k; c++) {
+			VisualWord a = results.get(0).get(c);
+			VisualWord b = results.get(1).get(c);
+			if (!Arrays.equals(a.centroied.descriptor, b.centroied.descriptor)
+					|| !a.verificationValue.equals(b.verificationValue))
+				throw new IllegalStateException("different visual word " + c);
+		}
+	}
+
+	/**
+	 * Builds a vocabulary tree and compares its word lookup with the
+	 * nearest search over 300 flat visual words
+	 */
+	static void tree(int n, int branching, int depth) throws Exception {
+		final DescriptorMatrix points = scattered(n, 1000);
+		ForkJoinPool pool = new ForkJoinPool();
+
+		long start = System.nanoTime();
+		final VocabularyTree tree = VocabularyTree.build(points, branching,
+				depth, 5, KMeans.SEEDING_PARALLEL, 1, pool);
+		double buildMs = (System.nanoTime() - start) / 1e6;
+		pool.shutdown();
+		KMeans kmeans = new KMeans(points, 300, 5, 1, null);
+		kmeans.setSeeding(KMeans.SEEDING_PARALLEL);
+		start = System.nanoTime();
+		final List<VisualWord> flat = kmeans.run();
+		double flatMs = (System.nanoTime() - start) / 1e6;
+
+		final float[] packed = new float[flat.size() * points.dimension()];
+		for (int c = 0; c < flat.size(); c++)
+			System.arraycopy(flat.get(c).centroied.descriptor, 0, packed, c
+					* points.dimension(), points.dimension());
+		final int lookups = 10000;
+		double treeMs = measure(new Task() {
+			public void run() {
+				float[] distance = new float[1];
+				for (int i = 0; i < lookups; i++)
+					tree.lookup(points, i, distance);
+			}
+		});
+		double flatLookupMs = measure(new Task() {
+			public void run() {
+				for (int i = 0; i < lookups; i++) {
+					float best = Float.MAX_VALUE;
+					for (int c = 0; c < flat.size(); c++)
+						best = Math.min(best, points.distance(i, packed, c
+								* points.dimension()));
+				}
+			}
+		});
+
+		System.out.println(n + " descriptors");
+		System.out.println(String.format(
+				"tree %dx%d %7d words  build %8.1fms  lookup %6.2fus",
+				branching, depth, tree.words().size(), buildMs, treeMs * 1000
+						/ lookups));
+		System.out.println(String.format(
+				"flat     %7d words  build %8.1fms  lookup %6.2fus", flat
+						.size(), flatMs, flatLookupMs * 1000 / lookups));
+	}
+
+	/**
+	 * Assigns the n features of an image to k words by the linear scan of
+	 * each feature and by the batched WordMatrix
+	 */
+	static void assign(int n, int k) throws Exception {
+		final DescriptorMatrix points = scattered(n + k, k / 3);
+		final int dim = points.dimension();
+		final float[] words = Arrays.copyOfRange(points.descriptors, n * dim,
+				(n + k) * dim);
+		final DescriptorMatrix image = new DescriptorMatrix(dim, n);
+		for (int i = 0; i < n; i++)
+			image.add(points.getFeature(i));
+
+		final int[] scalar = new int[n];
+		final float[] scalarDistances = new float[n];
+		double scalarMs = measure(new Task() {
+			public void run() {
+				for (int i = 0; i < n; i++) {
+					scalarDistances[i] = Float.MAX_VALUE;
+					for (int c = 0; c < k; c++) {
+						float d = image.distance(i, words, c * dim);
+						if (d < scalarDistances[i]) {
+							scalarDistances[i] = d;
+							scalar[i] = c;
+						}
+					}
+				}
+			}
+		});
+
+		final WordMatrix matrix = new WordMatrix(words, dim);
+		final int[] batched = new int[n];
+		final float[] batchedDistances = new float[n];
+		double batchedMs = measure(new Task() {
+			public void run() {
+				matrix.assign(image, 0, n, batched, batchedDistances);
+			}
+		});
+
+		int same = 0;
+		for (int i = 0; i < n; i++)
+			if (batched[i] == scalar[i]
+					&& batchedDistances[i] == scalarDistances[i])
+				same++;
+		System.out.println(String.format("%d features, %d words", n, k));
+		System.out.println(String.format("linear scan  %8.3fms", scalarMs));
+		System.out.println(String.format(
+				"WordMatrix   %8.3fms  %d of %d identical", batchedMs, same, n));
+	}
+
+	/**
+	 * Compares the nearest word search of a KdForest over k words with the
+	 * linear scan for a growing number of checks
+	 */
+	static void kdForest(int k, int trees) throws Exception {
+		int queries = 20000;
+		final DescriptorMatrix points = scattered(k + queries, k / 3);
+		final int dim = points.dimension();
+		final float[] words = Arrays.copyOf(points.descriptors, k * dim);
+		final DescriptorMatrix q = new DescriptorMatrix(dim, queries);
+		for (int i = k; i < points.size(); i++)
+			q.add(points.getFeature(i));
+
+		final int[] exact = new int[queries];
+		double linearMs = measure(new Task() {
+			public void run() {
+				for (int i = 0; i < q.size(); i++) {
+					float best = Float.MAX_VALUE;
+					for (int c = 0; c < words.length / dim; c++) {
+						float d = q.distance(i, words, c * dim);
+						if (d < best) {
+							best = d;
+							exact[i] = c;
+						}
+					}
+				}
+			}
+		});
+		System.out.println(String.format("%d words, %d queries", k, queries));
+		System.out.println(String.format("linear scan            %8.2fus",
+				linearMs * 1000 / queries));
+
+		long start = System.nanoTime();
+		final KdForest forest = new KdForest(words, dim, trees, 1);
+		System.out.println(String.format("%d trees built in %.1fms", trees,
+				(System.nanoTime() - start) / 1e6));
+		for (final int checks : new int[] { 8, 16, 32, 64, 128, 256, k }) {
+			final int[] found = new int[queries];
+			double ms = measure(new Task() {
+				public void run() {
+					float[] distance = new float[1];
+					for (int i = 0; i < q.size(); i++)
+						found[i] = forest.search(q, i, checks, distance);
+				}
+			});
+			int same = 0;
+			for (int i = 0; i < queries; i++)
+				if (found[i] == exact[i])
+					same++;
+			System.out.println(String.format(
+					"checks %4d            %8.2fus  recall %5.1f%%", checks,
+					ms * 1000 / queries, 100.0 * same / queries));
+		}
+	}
+
+	/**
+	 * Compares the product quantization search with the linear scan for
+	 * several numbers of reranked words
+	 */
+	static void productQuantizer(int k, int subspaces) throws Exception {
+		int queries = 20000;
+		final DescriptorMatrix points = scattered(k + queries, k / 3);
+		final int dim = points.dimension();
+		final float[] words = Arrays.copyOf(points.descriptors, k * dim);
+		final DescriptorMatrix q = new DescriptorMatrix(dim, queries);
+		for (int i = k; i < points.size(); i++)
+			q.add(points.getFeature(i));
+
+		final int[] exact = new int[queries];
+		double linearMs = measure(new Task() {
+			public void run() {
+				for (int i = 0; i < q.size(); i++) {
+					float best = Float.MAX_VALUE;
+					for (int c = 0; c < words.length / dim; c++) {
+						float d = q.distance(i, words, c * dim);
+						if (d < best) {
+							best = d;
+							exact[i] = c;
+						}
+					}
+				}
+			}
+		});
+		System.out.println(String.format("%d words, %d queries", k, queries));
+		System.out.println(String.format("linear scan            %8.2fus",
+				linearMs * 1000 / queries));
+
+		long start = System.nanoTime();
+		final ProductQuantizer quantizer = new ProductQuantizer(words, dim,
+				subspaces, 1);
+		System.out.println(String.format("%d subspaces trained in %.1fms",
+				subspaces, (System.nanoTime() - start) / 1e6));
+		for (final int rerank : new int[] { 1, 4, 8, 16, 64, 256 }) {
+			final int[] found = new int[queries];
+			double ms = measure(new Task() {
+				public void run() {
+					float[] distance = new float[1];
+					for (int i = 0; i < q.size(); i++)
+						found[i] = quantizer.search(q, i, rerank, distance);
+				}
+			});
+			int same = 0;
+			for (int i = 0; i < queries; i++)
+				if (found[i] == exact[i])
+					same++;
+			System.out.println(String.format(
+					"rerank %4d            %8.2fus  recall %5.1f%%", rerank,
+					ms * 1000 / queries, 100.0 * same / queries));
+		}
+	}
+
+	/**
+	 * Measures the InvertedIndex query time on growing catalogues of random
+	 * images with a skewed word distribution, it should grow with the
+	 * postings touched and not with the number of images
+	 */
+	static void retrieval(int n, int k, int features) throws Exception {
+		Random rnd = new Random(0);
+		InvertedIndex index = new InvertedIndex(k);
+		int queries = 1000;
+		final int[][] q = new int[queries][];
+		for (int i = 0; i < queries; i++)
+			q[i] = randomHistogram(rnd, k, features);
+
+		System.out.println(String.format(
+				"%d words, %d features per image, %d queries", k, features,
+				queries));
+		for (int size = Math.max(1, n / 100); size <= n; size *= 10) {
+			while (index.size() < size)
+				index.add(randomHistogram(rnd, k, features));
+			long touched = 0;
+			for (int[] h : q)
+				for (int w = 0; w < k; w++)
+					if (h[w] > 0)
+						touched += index.postings(w);
+			final InvertedIndex idx = index;
+			for (final InvertedIndex.Scoring scoring : InvertedIndex.Scoring
+					.values()) {
+				idx.search(q[0], 10, scoring);
+				double ms = measure(new Task() {
+					public void run() {
+						for (int[] h : q)
+							idx.search(h, 10, scoring);
+					}
+				});
+				System.out.println(String.format(
+						"%8d images %6s %9.1fus per query, %8d postings "
+								+ "touched, %5.2fns per posting", size,
+						scoring, ms * 1000 / queries, touched / queries, ms
+								* 1e6 / touched));
+			}
+		}
+	}
+
+	/**
+	 * @return a histogram of features words, low words are more frequent
+	 */
+	private static int[] randomHistogram(Random rnd, int k, int features) {
+		int[] histogram = new int[k];
+		for (int f = 0; f < features; f++) {
+			double u = rnd.nextDouble();
+			histogram[(int) (k * u * u)]++;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Stops a checkpointed k-means after the given iteration like a crash,
+	 * resumes it and compares the visual words with an uninterrupted run
+	 */
+	static void checkpoint(int n, int k, final int stop) throws Exception {
+		DescriptorMatrix points = scattered(n, k);
+		File file = File.createTempFile("kmeans", ".checkpoint");
+		file.delete();
+		try {
+			long start = System.nanoTime();
+			KMeans kmeans = new KMeans(points, k, 5, 1, null);
+			List<VisualWord> expected = kmeans.run();
+			System.out.println(String.format(
+					"uninterrupted %8.1fms %3d iterations",
+					(System.nanoTime() - start) / 1e6, kmeans.getIterations()));
+
+			start = System.nanoTime();
+			kmeans = new KMeans(points, k, 5, 1, null);
+			kmeans.setCheckpoint(file, 0);
+			kmeans.setListener(new ClusteringListener() {
+				public void iterationDone(Iteration iteration) {
+					if (iteration.number == stop)
+						throw new IllegalStateException("stop");
+				}
+			});
+			try {
+				kmeans.run();
+				System.out.println("finished before iteration " + stop);
+			} catch (IllegalStateException e) {
+				System.out.println(String.format(
+						"stopped       %8.1fms %3d iterations, checkpoint %d bytes",
+						(System.nanoTime() - start) / 1e6, stop, file.length()));
+			}
+
+			start = System.nanoTime();
+			kmeans = new KMeans(points, k, 5, 1, null);
+			kmeans.setCheckpoint(file, 0);
+			List<VisualWord> resumed = kmeans.run();
+			System.out.println(String.format(
+					"resumed       %8.1fms %3d iterations, %d restored",
+					(System.nanoTime() - start) / 1e6, kmeans.getIterations(),
+					kmeans.getResumedIterations()));
+
+			for (int c = 0; c < k; c++) {
+				VisualWord a = expected.get(c);
+				VisualWord b = resumed.get(c);
+				if (!Arrays.equals(a.centroied.descriptor,
+						b.centroied.descriptor)
+						|| !a.verificationValue.equals(b.verificationValue))
+					throw new IllegalStateException("different visual word "
+							+ c);
+			}
+			System.out.println("same visual words");
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Writes n descriptors scattered around k random centers to a temporary
+	 * DescriptorFile without holding them in memory and clusters them out
+	 * of core, run it with a heap smaller than the file
+	 */
+	static void outOfCore(int n, int k) throws Exception {
+		int dim = CbirWithSift.descriptorLength();
+		File file = File.createTempFile("descriptors", ".bin");
+		file.deleteOnExit();
+		try {
+			DescriptorFile.Writer writer = DescriptorFile.create(file, dim);
+			int chunk = 10000;
+			Random rnd = new Random(0);
+			float[] centers = new float[k * dim];
+			for (int i = 0; i < centers.length; i++)
+				centers[i] = rnd.nextFloat();
+			float[] descriptors = new float[chunk * dim];
+			for (int first = 0; first < n; first += chunk) {
+				int rows = Math.min(chunk, n - first);
+				for (int i = 0; i < rows; i++) {
+					int c = rnd.nextInt(k);
+					for (int d = 0; d < dim; d++)
+						descriptors[i * dim + d] = centers[c * dim + d]
+								+ (float) rnd.nextGaussian() * 0.05f;
+				}
+				writer.add(descriptors, 0, rows);
+			}
+			writer.close();
+
+			DescriptorFile descriptorFile = DescriptorFile.open(file);
+			System.out.println(String.format(
+					"%d descriptors, file %dMB, max heap %dMB", n, file
+							.length() >> 20,
+					Runtime.getRuntime().maxMemory() >> 20));
+			ForkJoinPool pool = new ForkJoinPool();
+			OutOfCoreKMeans kmeans = new OutOfCoreKMeans(descriptorFile, k, 5,
+					1, pool);
+			kmeans.setSeeding(KMeans.SEEDING_PARALLEL);
+			long start = System.nanoTime();
+			List<VisualWord> words = kmeans.run();
+			double ms = (System.nanoTime() - start) / 1e6;
+			pool.shutdown();
+
+			double error = 0;
+			float[] row = new float[dim];
+			for (int i = 0; i < n; i++) {
+				descriptorFile.read(i, 1, row);
+				float best = Float.MAX_VALUE;
+				for (VisualWord w : words) {
+					float distance = 0;
+					for (int d = 0; d < dim; d++) {
+						float a = row[d] - w.centroied.descriptor[d];
+						distance += a * a;
+					}
+					best = Math.min(best, distance);
+				}
+				error += best;
+			}
+			System.out.println(String.format(
+					"out of core %10.1fms %3d passes %3d reseed rounds"
+							+ "  mean squared error %8.4f", ms, kmeans
+							.getIterations(), kmeans.getReseedRounds(), error
+							/ n));
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return n descriptors scattered around k random centers
+	 */
+	static DescriptorMatrix scattered(int n, int k) {
+		int dim = CbirWithSift.descriptorLength();
+		Random rnd = new Random(0);
+		float[] centers = new float[k * dim];
+		for (int i = 0; i < centers.length; i++)
+			centers[i] = rnd.nextFloat();
+		DescriptorMatrix points = new DescriptorMatrix(dim, n);
+		float[] descriptor = new float[dim];
+		for (int i = 0; i < n; i++) {
+			int c = rnd.nextInt(k);
+			for (int d = 0; d < dim; d++)
+				descriptor[d] = centers[c * dim + d]
+						+ (float) rnd.nextGaussian() * 0.05f;
+			points.add(0, 0, 1, 0, descriptor, 0);
+		}
+		return points;
+	}
+
+	private static void report(String name, double ms,
+			DescriptorMatrix points, List<VisualWord> words) {
+		double error = 0;
+		for (int i = 0; i < points.size(); i++) {
+			float best = Float.MAX_VALUE;
+			for (VisualWord w : words)
+				best = Math.min(best, points.distance(i,
+						w.centroied.descriptor, 0));
+			error += best * best;
+		}
+		System.out.println(String.format(
+				"%-10s %10.1fms  mean squared error %8.4f", name, ms, error
+						/ points.size()));
+	}
+
+	/**
+	 * Compares the FastFilter methods with their Filter counterparts
+	 */
+	static void filter(BufferedImage source) throws Exception {
+		final FloatArray2D image = CbirWithSift.ImageToFloatArray2D(source);
+		final float[] kernel = Filter.createGaussianKernel1D(3.0f, true);
+		final int w = image.width;
+		final int h = image.height;
+		final float[] tmp = new float[w * h];
+		final float[] out = new float[w * h];
+
+		FloatArray2D expected = image.clone();
+		FloatArray2D actual = image.clone();
+		Filter.enhance(expected, 1.0f);
+		FastFilter.enhance(actual, 1.0f);
+		compare("enhance", expected, actual);
+		compare("computeGaussianFastMirror", Filter.computeGaussianFastMirror(
+				image, 1.56f), FastFilter.computeGaussianFastMirror(image,
+				1.56f));
+		expected = Filter.convolveSeparable(image, kernel, kernel);
+		FastFilter.convolveRows(image.data, w, kernel, tmp, 0, h);
+		FastFilter.convolveColumns(tmp, w, h, kernel, out, 0, h);
+		compare("convolveSeparable", expected, new FloatArray2D(out, w, h));
+
+		System.out.println("Filter " + w + "x" + h);
+		report("enhance", measure(new Task() {
+			public void run() {
+				Filter.enhance(image.clone(), 1.0f);
+			}
+		}), measure(new Task() {
+			public void run() {
+				FastFilter.enhance(image.clone(), 1.0f);
+			}
+		}));
+		report("computeGaussianFastMirror", measure(new Task() {
+			public void run() {
+				Filter.computeGaussianFastMirror(image, 1.56f);
+			}
+		}), measure(new Task() {
+			public void run() {
+				FastFilter.computeGaussianFastMirror(image, 1.56f);
+			}
+		}));
+		report("convolveSeparable", measure(new Task() {
+			public void run() {
+				Filter.convolveSeparable(image, kernel, kernel);
+			}
+		}), measure(new Task() {
+			public void run() {
+				FastFilter.convolveRows(image.data, w, kernel, tmp, 0, h);
+				FastFilter.convolveColumns(tmp, w, h, kernel, out, 0, h);
+			}
+		}));
+	}
+
+	private static void compare(String name, FloatArray2D expected,
+			FloatArray2D actual) {
+		for (int i = 0; i < expected.data.length; i++) {
+			if (Float.floatToIntBits(expected.data[i]) != Float
+					.floatToIntBits(actual.data[i]))
+				throw new IllegalStateException(name + ": different value at "
+						+ i);
+		}
+	}
+
+	private static void report(String name, double filterMs, double fastMs) {
+		System.out.println(String.format(
+				"%-26s Filter %8.3fms  FastFilter %8.3fms  speedup %5.1fx",
+				name, filterMs, fastMs, filterMs / fastMs));
+	}
+
+	/**
+	 * Compares the features and the run time of FloatArray2DSIFT and the
+	 * SiftDetector, sequential and on all processors
+	 */
+	static void sift(BufferedImage source) throws Exception {
+		final FloatArray2D fa = CbirWithSift.prepareSift(CbirWithSift
+				.ImageToFloatArray2D(source));
+		final FloatArray2DSIFT jar = CbirWithSift.newJarSift();
+		final SiftDetector serial = CbirWithSift.newSiftDetector(null);
+		int processors = Runtime.getRuntime().availableProcessors();
+		final SiftDetector parallel = CbirWithSift
+				.newSiftDetector(new ForkJoinPool(processors));
+
+		List<Feature> expected = CbirWithSift.runSift(jar, fa);
+		List<Feature> actual = CbirWithSift.runSift(parallel, fa);
+		int identical = 0;
+		float location = 0, scale = 0, orientation = 0, descriptor = 0;
+		for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+			Feature e = expected.get(i);
+			Feature a = actual.get(i);
+			float dl = Math.max(Math.abs(e.location[0] - a.location[0]),
+					Math.abs(e.location[1] - a.location[1]));
+			float ds = Math.abs(e.scale - a.scale);
+			float dor = Math.abs(e.orientation - a.orientation);
+			float dd = e.descriptorDistance(a);
+			if (dl == 0 && ds == 0 && dor == 0 && dd == 0)
+				identical++;
+			location = Math.max(location, dl);
+			scale = Math.max(scale, ds);
+			orientation = Math.max(orientation, dor);
+			descriptor = Math.max(descriptor, dd);
+		}
+		System.out.println("SIFT " + fa.width + "x" + fa.height + ": jar "
+				+ expected.size() + " features, SiftDetector " + actual.size()
+				+ ", " + identical + " identical");
+		System.out.println(String.format(
+				"max difference: location %g, scale %g, orientation %g, descriptor %g",
+				location, scale, orientation, descriptor));
+
+		double jarMs = measure(new Task() {
+			public void run() {
+				CbirWithSift.runSift(jar, fa);
+			}
+		});
+		double serialMs = measure(new Task() {
+			public void run() {
+				CbirWithSift.runSift(serial, fa);
+			}
+		});
+		double parallelMs = measure(new Task() {
+			public void run() {
+				CbirWithSift.runSift(parallel, fa);
+			}
+		});
+		System.out.println(String.format("FloatArray2DSIFT      %8.1fms",
+				jarMs));
+		System.out.println(String.format(
+				"SiftDetector          %8.1fms  speedup %5.2fx", serialMs,
+				jarMs / serialMs));
+		System.out.println(String.format(
+				"SiftDetector %2d cores %8.1fms  speedup %5.2fx", processors,
+				parallelMs, jarMs / parallelMs));
+	}
+
+	static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	interface Task {
+		void run() throws Exception;
+	}
+
+	/**
+	 * @return the average time of one run in ms, after a warm up phase
+	 */
+	static double measure(Task task) throws Exception {
+		long end = System.currentTimeMillis() + MEASURE_MS / 2;
+		while (System.currentTimeMillis() < end)
+			task.run();
+
+		int runs = 0;
+		long start = System.nanoTime();
+		end = System.currentTimeMillis() + MEASURE_MS;
+		while (System.currentTimeMillis() < end) {
+			task.run();
+			runs++;
+		}
+		return (System.nanoTime() - start) / 1e6 / runs;
+	}
+
+	static BufferedImage convert(BufferedImage source, int type) {
+		BufferedImage image = new BufferedImage(source.getWidth(),
+				source.getHeight(), type);
+		Graphics2D g = image.createGraphics();
+		g.drawImage(source, 0, 0, null);
+		g.dispose();
+		return image;
+	}
+
+	static BufferedImage randomImage(int width, int height) {
+		Random rnd = new Random(0);
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				image.setRGB(x, y, rnd.nextInt(0x1000000));
+		return image;
+	}
+}
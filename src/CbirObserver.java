@@ -0,0 +1,16 @@
+/**
+ * Gets informed about the progress of the CbirWithSift pipeline, e.g. to
+ * show it on a GUI
+ */
+public interface CbirObserver {
+
+	/**
+	 * a new pipeline stage has been started
+	 */
+	void stageStarted(String title);
+
+	/**
+	 * an image has been read, classified into visual words or verified
+	 */
+	void imageProcessed(IgsImage image) throws InterruptedException;
+}
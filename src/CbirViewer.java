@@ -0,0 +1,127 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JFrame;
+
+/**
+ * Shows the image currently processed by CbirWithSift together with its
+ * SIFT features and their visual words
+ */
+public class CbirViewer extends JFrame implements CbirObserver {
+	// the pipeline, used to classify the features into visual words
+	private final CbirWithSift cbir;
+
+	// for testing: delay time for showing images in the GUI
+	private final int wait;
+
+	// helper variables for the repaint, prepared by imageProcessed so paint
+	// neither decodes nor classifies anything on the event thread
+	IgsImage cur_image;
+	private BufferedImage cur_bitmap;
+	private DescriptorMatrix cur_features;
+	private int[] cur_words;
+
+	public CbirViewer(CbirWithSift cbir, int wait) {
+		super("Clustering");
+		this.cbir = cbir;
+		this.wait = wait;
+		setVisible(true);
+		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		setSize(600, 600);
+	}
+
+	public void stageStarted(String title) {
+		setTitle(title);
+	}
+
+	public void imageProcessed(IgsImage image) throws InterruptedException {
+		// reload a released bitmap here on the pipeline thread
+		BufferedImage bitmap = image.getImage();
+		DescriptorMatrix features = image.getFeatures();
+		int[] words = features == null ? null : cbir.visualWords(image);
+		synchronized (this) {
+			cur_image = image;
+			cur_bitmap = bitmap;
+			cur_features = features;
+			cur_words = words;
+		}
+		repaint();
+		Thread.sleep(wait);
+	}
+
+	/**
+	 * draws a rotated square with center point center, having size and
+	 * orientation
+	 */
+	static void drawSquare(Graphics _g, double[] o, double scale,
+			double orient, Integer _class) {
+		scale /= 2;
+
+		double sin = Math.sin(orient);
+		double cos = Math.cos(orient);
+
+		int[] x = new int[6];
+		int[] y = new int[6];
+
+		x[0] = (int) (o[0] + (sin - cos) * scale);
+		y[0] = (int) (o[1] - (sin + cos) * scale);
+
+		x[1] = (int) o[0];
+		y[1] = (int) o[1];
+
+		x[2] = (int) (o[0] + (sin + cos) * scale);
+		y[2] = (int) (o[1] + (sin - cos) * scale);
+		x[3] = (int) (o[0] - (sin - cos) * scale);
+		y[3] = (int) (o[1] + (sin + cos) * scale);
+		x[4] = (int) (o[0] - (sin + cos) * scale);
+		y[4] = (int) (o[1] - (sin - cos) * scale);
+		x[5] = x[0];
+		y[5] = y[0];
+
+		// if(_class==null || _class.intValue()==92 || _class.intValue()==69 ||
+		// _class.intValue()==91) {
+
+		_g.setColor(Color.red);
+		_g.drawPolygon(new Polygon(x, y, x.length));
+		_g.setColor(Color.yellow);
+		if (_class != null)
+			_g.drawString(_class + "", x[0], y[0]);
+		// }
+
+	}
+
+	@Override
+	public synchronized void paint(Graphics _g) {
+
+		_g.clearRect(0, 0, 1000, 1000);
+
+		if (cur_image == null)
+			return;
+
+		BufferedImage image = cur_bitmap;
+		int height = 0;
+		if (image != null) {
+			_g.drawImage(image, 0, 0, null);
+			height = image.getHeight();
+		}
+
+		_g.setColor(cur_image.isClassificationCorect() ? Color.green
+				: Color.red);
+
+		_g.drawString(cur_image.className + " > " + cur_image.classifiedName,
+				20, height + 40);
+
+		DescriptorMatrix features = cur_features;
+		if (features != null) {
+			int[] words = cur_words;
+			for (int f = 0; f < features.size(); f++)
+				drawSquare(_g, new double[] { features.x[f], features.y[f] },
+						CbirWithSift.fdsize * 4.0 * (double) features.scale[f],
+						(double) features.orientation[f],
+						words[f] < 0 ? null : Integer.valueOf(words[f]));
+		}
+
+	}
+}
@@ -16,15 +16,23 @@
  * </pre>
  */
 
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Polygon;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -35,9 +43,14 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
-import javax.swing.JFrame;
 
 import mpi.cbg.fly.Feature;
 import mpi.cbg.fly.Filter;
@@ -49,13 +62,42 @@ import org.neuroph.core.learning.TrainingSet;
 import org.neuroph.nnet.MultiLayerPerceptron;
 import org.neuroph.util.TransferFunctionType;
 
-public class CbirWithSift extends JFrame {
-	// helper variables for the repaint
-	IgsImage cur_image;
+public class CbirWithSift {
+	// get informed about the progress, e.g. the CbirViewer
+	private final List<CbirObserver> observers = new ArrayList<CbirObserver>();
+
+	// wall time of each pipeline stage in ms, in execution order
+	private final Map<String, Long> stageTimes = new LinkedHashMap<String, Long>();
+	private String stage;
+	private long stageStart;
 
 	// the extracted visual words - model for the VisualWordHistogram
 	List<VisualWord> bagofwords = new Vector<VisualWord>();
 
+	// the tree of the visual words if they are learned hierarchically,
+	// null for the flat k-means vocabulary
+	VocabularyTree vocabularyTree;
+
+	// the approximate nearest word indexes and the batched assignment of
+	// the flat bagofwords, built for indexedWords, null = linear scan
+	KdForest wordIndex;
+	ProductQuantizer wordQuantizer;
+	WordMatrix wordMatrix;
+	private List<VisualWord> indexedWords;
+
+	// incremented whenever bagofwords or vocabularyTree change, the visual
+	// words stored in an IgsImage are valid for one version
+	private int vocabularyVersion;
+	private List<VisualWord> versionedWords;
+	private VocabularyTree versionedTree;
+
+	// the VisualWordHistograms of the indexedImages for findSimilarImages,
+	// image id i of the index is indexedImages.get(i), null = none. Valid
+	// for the vocabulary version imageIndexVersion.
+	InvertedIndex imageIndex;
+	private List<IgsImage> indexedImages;
+	private int imageIndexVersion;
+
 	// a model to classify a VisualWordHistogram into a ImageClass
 	Object decisionModel;
 
@@ -72,8 +114,125 @@ public class CbirWithSift extends JFrame {
 	// default = 4
 	private static int steps = 6;
 
-	// for testing: delay time for showing images in the GUI
-	private static int wait = 0;
+	// the image folders, the class name of each image is the file name up
+	// to the first '_'
+	private static String trainingFolder = "./images/training";
+	private static String testFolder = "./images/test";
+
+	// keep the decoded bitmaps of all images in memory, otherwise they are
+	// released after the SIFT extraction and reloaded for the GUI on demand
+	private static boolean keepImages = false;
+
+	// images with a larger side are downscaled to this size before the SIFT
+	// extraction, 0 = use the original size
+	private static int maxImageSize = 0;
+
+	// keep only the features with the largest scale of each image, 0 = all
+	private static int maxFeatures = 0;
+
+	// folder of the persistent SIFT feature cache, null disables the cache
+	private static String cacheDir = "./cache";
+
+	// seed of the random start points of the k-means clustering, the same
+	// seed gives the same visual words for any number of threads
+	private static long seed = new Random().nextLong();
+
+	// how the start centroids of the k-means are chosen: random, kmeans++
+	// or kmeans|| (k-means++ with a few parallel passes for large inputs)
+	private static String seeding = "kmeans||";
+
+	// learn the visual words as a vocabulary tree with this branching
+	// factor and depth instead of K flat words, 0 = flat
+	private static int treeBranching = 0;
+	private static int treeDepth = 4;
+
+	// cluster with the mini-batch k-means with batches of this size instead
+	// of the full k-means, 0 = full k-means
+	private static int miniBatchSize = 0;
+
+	// the mini-batch k-means stops after this many batches or when the
+	// smoothed batch error did not improve for miniBatchPatience batches
+	private static int miniBatchIterations = 300;
+	private static int miniBatchPatience = 10;
+
+	// the mini-batch learning rate of a centroid is 1 / members^decay
+	private static float learningRateDecay = 1.0f;
+
+	// print the statistics of every n-th clustering iteration and of every
+	// iteration which reseeded centroids, 0 = none
+	private static int progress = 1;
+
+	// the full k-means writes its state to this file every
+	// checkpointInterval seconds and resumes from it after a restart,
+	// null = no checkpoints
+	private static String checkpointFile = null;
+	private static int checkpointInterval = 60;
+
+	// learn the visual words from at most this many descriptors of each
+	// image and in total, optionally shared equally by the image classes,
+	// 0 = all
+	private static int maxDescriptorsPerImage = 0;
+	private static int maxDescriptors = 0;
+	private static boolean stratifiedSampling = false;
+
+	// print the quality of the visual words on all training descriptors
+	private static boolean vocabularyReport = false;
+
+	// find the nearest flat visual word with a forest of this many
+	// randomized k-d trees comparing at most kdChecks words, 0 = compare
+	// all words
+	private static int kdTrees = 0;
+	private static int kdChecks = 32;
+
+	// find the nearest flat visual word by product quantization with this
+	// many subspaces, comparing the pqRerank best estimates exactly, 0 =
+	// compare all words. Not used together with kdTrees.
+	private static int pqSubspaces = 0;
+	private static int pqRerank = 8;
+
+	// assign the features of an image one by one instead of all at once by
+	// the WordMatrix
+	private static boolean scalarAssign = false;
+
+	// index the training images and search the retrieve most similar ones
+	// of each test image, scored by tfidf or bm25, 0 = no retrieval
+	private static int retrieve = 0;
+	private static String retrievalScoring = "bm25";
+
+	// load the visual words from this VocabularyFile instead of clustering,
+	// and save the learned ones to that file, null = none
+	private static String loadVocabulary = null;
+	private static String saveVocabulary = null;
+
+	// write the training descriptors to this file and cluster them out of
+	// core by streaming the file, null = cluster in memory
+	private static String descriptorFile = null;
+
+	// number of worker threads for the SIFT extraction and the clustering
+	private static int threads = Runtime.getRuntime().availableProcessors();
+
+	// use FloatArray2DSIFT of Java_SIFT.jar instead of the SiftDetector,
+	// both find exactly the same features
+	private static boolean jarSift = false;
+
+	// every extraction worker keeps its own SIFT instance, the octave
+	// buffers must not be shared between threads
+	private static final ThreadLocal<FloatArray2DSIFT> sift = new ThreadLocal<FloatArray2DSIFT>() {
+		@Override
+		protected FloatArray2DSIFT initialValue() {
+			return newJarSift();
+		}
+	};
+	private static final ThreadLocal<SiftDetector> detector = new ThreadLocal<SiftDetector>() {
+		@Override
+		protected SiftDetector initialValue() {
+			return newSiftDetector(pool());
+		}
+	};
+
+	// shared by the SiftDetectors for the octaves and levels of one image
+	// and by the k-means clustering
+	private static ForkJoinPool pool;
 
 	/**
 	 * * The method doLearnDecisionModel sets those according to the output of
@@ -83,7 +242,7 @@ public class CbirWithSift extends JFrame {
 	/** 
 	 * Learn time in min.
 	 */
-	static final int trainingTime = 1;
+	static int trainingTime = 1;
 
 	/**
 	 * * * REPLACE THIS METHOD * * * Classifies a VisualWordHistogram into
@@ -153,8 +312,10 @@ public class CbirWithSift extends JFrame {
 
 		// create training set (logical XOR function)
 		System.out.println("Build test data ...");
+		// one input per visual word
+		int inputs = dataSet.values().iterator().next().get(0).length;
 		TrainingSet<SupervisedTrainingElement> trainingSet = new TrainingSet<SupervisedTrainingElement>(
-				K, classNames.size());
+				inputs, classNames.size());
 
 		int classNum = 0;
 		for (Vector<int[]> v : dataSet.values()) {
@@ -179,9 +340,9 @@ public class CbirWithSift extends JFrame {
 
 		// create multi layer perceptron
 		System.out.println("learn...");
-		System.out.println("create NN with 2 Layer: " + K + " " + classNames.size());
+		System.out.println("create NN with 2 Layer: " + inputs + " " + classNames.size());
 		MultiLayerPerceptron nnet = new MultiLayerPerceptron(
-				TransferFunctionType.TANH, K, classNames.size());
+				TransferFunctionType.TANH, inputs, classNames.size());
 		nnet.learnInNewThread(trainingSet);
 		try {
 			Thread.sleep(1000 * 60 * trainingTime);
@@ -235,26 +396,41 @@ public class CbirWithSift extends JFrame {
 		if (bagofwords == null || f == null)
 			return null;
 
+		DescriptorMatrix m = new DescriptorMatrix(f.descriptor.length, 1);
+		m.add(f);
+		return doClassifyVisualWord(m, 0);
+	}
+
+	/**
+	 * Classifies row i of a DescriptorMatrix into a VisualWord Class, see
+	 * doClassifyVisualWord(Feature). With a vocabularyTree the word is found
+	 * by walking down the tree, with a wordIndex or a wordQuantizer by their
+	 * approximate search.
+	 * 
+	 * @return the class ID (0..k) or null if quality is not good enough
+	 */
+	public Integer doClassifyVisualWord(DescriptorMatrix m, int i) {
+		if (bagofwords == null || m == null)
+			return null;
+
 		/*
 		 * Find best cluster
 		 */
+		float[] distance = new float[1];
 		// Index of best cluster
-		Integer bestmatch = null;
-		// Best cluster
-		VisualWord bestWord = null;
-		// Distance to best cluster so far
-		float shortestDistance = Float.MAX_VALUE;
-
-		for (int i = 0; i < bagofwords.size(); i++) {
-			VisualWord word = bagofwords.get(i);
-			float distance = word.centroied.descriptorDistance(f);
+		Integer bestmatch = nearestWord(m, i, distance);
+		return verifiedWord(bestmatch, distance[0]);
+	}
 
-			if (bestmatch == null || distance < shortestDistance) {
-				bestmatch = i;
-				shortestDistance = distance;
-				bestWord = word;
-			}
-		}
+	/**
+	 * @return bestmatch if the distance to it is good enough, null otherwise
+	 *         and for a bestmatch outside the vocabulary
+	 */
+	private Integer verifiedWord(Integer bestmatch, float shortestDistance) {
+		// Best cluster
+		VisualWord bestWord = bestmatch == null || bestmatch < 0
+				|| bestmatch >= bagofwords.size() ? null : bagofwords
+				.get(bestmatch);
 
 		/*
 		 * Check distance quality (this has to be done for the best cluster
@@ -279,6 +455,38 @@ public class CbirWithSift extends JFrame {
 		return bestmatch;
 	}
 
+	/**
+	 * @return the index of the nearest visual word of row i of a
+	 *         DescriptorMatrix or null if there are no words, its distance is
+	 *         stored in distance[0]
+	 */
+	private Integer nearestWord(DescriptorMatrix m, int i, float[] distance) {
+		if (vocabularyTree != null)
+			return vocabularyTree.lookup(m, i, distance);
+		KdForest index = wordIndex;
+		if (index != null && indexedWords == bagofwords) {
+			int w = index.search(m, i, kdChecks, distance);
+			return w < 0 ? null : w;
+		}
+		ProductQuantizer quantizer = wordQuantizer;
+		if (quantizer != null && indexedWords == bagofwords) {
+			int w = quantizer.search(m, i, pqRerank, distance);
+			return w < 0 ? null : w;
+		}
+
+		Integer bestmatch = null;
+		float shortestDistance = Float.MAX_VALUE;
+		for (int w = 0; w < bagofwords.size(); w++) {
+			float d = m.distance(i, bagofwords.get(w).centroied.descriptor, 0);
+			if (bestmatch == null || d < shortestDistance) {
+				bestmatch = w;
+				shortestDistance = d;
+			}
+		}
+		distance[0] = shortestDistance;
+		return bestmatch;
+	}
+
 	/**
 	 * 
 	 * 
@@ -295,102 +503,380 @@ public class CbirWithSift extends JFrame {
 	 */
 	public static List<VisualWord> doClusteringVisualWords(
 			final Feature[] _points, int K, int minCount) {
-		System.out.println("Start clustering with: " + _points.length
-				+ " pkt to " + K + " classes");
+		return doClusteringVisualWords(
+				DescriptorMatrix.fromFeatures(Arrays.asList(_points)), K,
+				minCount);
+	}
 
-		VisualWord[] centeroids = new VisualWord[K];
-		float percent = 0.75f;
+	/**
+	 * a k-mean clustering implementation for SIFT-Features packed into a
+	 * DescriptorMatrix, the points are assigned and summed up in parallel by
+	 * KMeans. With a miniBatchSize the mini-batch k-means is used instead.
+	 * 
+	 * @param _points all found features in the training set
+	 * @param K how many classes (visual words)
+	 * @param minCount the minimum number of members in each class
+	 * @return the centroides of the k-mean = visual words list
+	 */
+	public static List<VisualWord> doClusteringVisualWords(
+			final DescriptorMatrix _points, int K, int minCount) {
+		System.out.println("Start clustering with: " + _points.size()
+				+ " pkt to " + K + " classes (seed " + seed + ")");
+
+		KMeans kmeans = new KMeans(_points, K, minCount, seed, pool());
+		kmeans.setSeeding(seeding());
+		kmeans.setListener(clusteringListener());
+		if (checkpointFile != null)
+			kmeans.setCheckpoint(new File(checkpointFile),
+					checkpointInterval * 1000L);
+
+		List<VisualWord> words;
+		if (miniBatchSize > 0)
+			words = kmeans.runMiniBatch(miniBatchSize, miniBatchIterations,
+					learningRateDecay, miniBatchPatience);
+		else
+			words = kmeans.run();
+		if (kmeans.getResumedIterations() > 0)
+			System.out.println("Resumed after " + kmeans.getResumedIterations()
+					+ " iterations from " + checkpointFile);
+		System.out.println("Clustering took " + kmeans.getIterations()
+				+ " iterations, " + kmeans.getReseedRounds()
+				+ " reseed rounds with " + kmeans.getReseeded()
+				+ " reseeded centroids");
+		if (miniBatchSize == 0)
+			System.out.println("Computed " + kmeans.getComputedDistances()
+					+ " distances, the bounds skipped "
+					+ kmeans.getSkippedDistances());
+		return words;
+	}
 
-		for (int i = 0; i < K; i++) {
-			// take a random feature as start point
-			Random rnd = new Random();
-			int pos = rnd.nextInt(_points.length);
-			VisualWord tmp = new VisualWord();
-			tmp.centroied = _points[pos];
-			centeroids[i] = tmp;
-		}
+	/**
+	 * a k-mean clustering of the descriptors of a DescriptorFile, they are
+	 * streamed from the file in every iteration by OutOfCoreKMeans and never
+	 * held in memory all at once
+	 * 
+	 * @param file the descriptors of all found features in the training set
+	 * @param K how many classes (visual words)
+	 * @param minCount the minimum number of members in each class
+	 * @return the centroides of the k-mean = visual words list
+	 */
+	public static List<VisualWord> doClusteringVisualWords(File file, int K,
+			int minCount) throws IOException {
+		DescriptorFile descriptors = DescriptorFile.open(file);
+		System.out.println("Start out of core clustering with: "
+				+ descriptors.size() + " pkt to " + K + " classes (seed "
+				+ seed + ")");
+
+		OutOfCoreKMeans kmeans = new OutOfCoreKMeans(descriptors, K,
+				minCount, seed, pool());
+		kmeans.setSeeding(seeding());
+		kmeans.setListener(clusteringListener());
+		if (checkpointFile != null)
+			kmeans.setCheckpoint(new File(checkpointFile),
+					checkpointInterval * 1000L);
+		List<VisualWord> words = kmeans.run();
+		if (kmeans.getResumedIterations() > 0)
+			System.out.println("Resumed after " + kmeans.getResumedIterations()
+					+ " passes from " + checkpointFile);
+		System.out.println("Clustering took " + kmeans.getIterations()
+				+ " passes, " + kmeans.getReseedRounds()
+				+ " reseed rounds with " + kmeans.getReseeded()
+				+ " reseeded centroids");
+		return words;
+	}
 
-		
-		
-		// cluster search
-		int newRandPos = 1;
-		boolean testAfterCenter = false;		
-		while (newRandPos > 0) {
-			// prepare centroids for new list of nearest points
-			for (int c = 0; c < K; c++)
-				centeroids[c].nearFeature = new ArrayList<Feature>();
-
-			// allocate each point to the nearest cluster center
-			for (int i = 0; i < _points.length; i++) {
-				double distance = 0.0;
-				int centerNr = 0;
-
-				for (int j = 0; j < K; j++) {
-					double d = _points[i]
-							.descriptorDistance(centeroids[j].centroied);
-
-					if (j == 0 || d < distance) {
-						distance = d;
-						centerNr = j;
-					}
-				}
-				centeroids[centerNr].nearFeature.add(_points[i]);
-			}
+	/**
+	 * Learns a vocabulary tree, the leaves are the visual words
+	 * 
+	 * @param _points all found features in the training set
+	 * @param branching clusters per node
+	 * @param depth levels below the root
+	 * @param minCount the minimum number of members in each class
+	 */
+	public static VocabularyTree doClusteringVocabularyTree(
+			DescriptorMatrix _points, int branching, int depth, int minCount) {
+		System.out.println("Start clustering with: " + _points.size()
+				+ " pkt to a tree of " + branching + "^" + depth
+				+ " classes (seed " + seed + ")");
+
+		VocabularyTree tree = VocabularyTree.build(_points, branching, depth,
+				minCount, seeding(), seed, pool());
+		System.out.println("Vocabulary tree with " + tree.words().size()
+				+ " visual words in " + tree.nodes() + " nodes");
+		return tree;
+	}
 
-			// set centeroids with less than minCount point to a new random position
-			int nrOfDescElement = centeroids[0].centroied.descriptor.length;
-			newRandPos = 0;
-			for (int c = 0; c < K; c++) {
-				int nrOfFeatures = centeroids[c].nearFeature.size();
-				if (nrOfFeatures < minCount) {
-					newRandPos++;
-					// set to a new random position
-					Random rnd = new Random();
-					int pos = rnd.nextInt(_points.length);
-					centeroids[c].centroied = _points[pos];
-				}
+	/**
+	 * @return a listener which prints every progress-th iteration and the
+	 *         reseeding ones, null if progress is 0
+	 */
+	private static ClusteringListener clusteringListener() {
+		if (progress <= 0)
+			return null;
+		return new ClusteringListener() {
+			public void iterationDone(Iteration iteration) {
+				if (iteration.number % progress == 0 || iteration.reseeded > 0)
+					System.out.println("  " + iteration);
 			}
+		};
+	}
+
+	private static int seeding() {
+		if ("kmeans||".equals(seeding))
+			return KMeans.SEEDING_PARALLEL;
+		if ("kmeans++".equals(seeding))
+			return KMeans.SEEDING_PLUS_PLUS;
+		if ("random".equals(seeding))
+			return KMeans.SEEDING_RANDOM;
+		throw new IllegalArgumentException("unknown seeding " + seeding);
+	}
+
+	private static InvertedIndex.Scoring retrievalScoring() {
+		if ("bm25".equals(retrievalScoring))
+			return InvertedIndex.Scoring.BM25;
+		if ("tfidf".equals(retrievalScoring))
+			return InvertedIndex.Scoring.TF_IDF;
+		throw new IllegalArgumentException("unknown retrieval scoring "
+				+ retrievalScoring);
+	}
+
+	/**
+	 * Replaces the visual words by the ones of a VocabularyFile
+	 */
+	public void loadVocabulary(File file) throws IOException {
+		long start = System.nanoTime();
+		VocabularyFile vocabulary = VocabularyFile.open(file);
+		int dimension = vocabulary.words().get(0).centroied.descriptor.length;
+		if (dimension != descriptorLength())
+			throw new IOException("descriptor length " + dimension
+					+ " of the vocabulary " + file + " != "
+					+ descriptorLength());
+		bagofwords = vocabulary.words();
+		vocabularyTree = vocabulary.tree();
+		indexVocabulary();
+		System.out.println("Loaded " + bagofwords.size() + " visual words"
+				+ (vocabularyTree != null ? " of a vocabulary tree" : "")
+				+ " from " + file + " in " + (System.nanoTime() - start)
+				/ 1000000 + "ms");
+	}
 
-			// System.out.println(newRandPos);
+	/**
+	 * Builds the wordIndex of the flat bagofwords if kdTrees is set, else
+	 * their wordQuantizer if pqSubspaces is set, and their wordMatrix unless
+	 * scalarAssign is set
+	 */
+	public void indexVocabulary() {
+		if (vocabularyTree != null || bagofwords.isEmpty()) {
+			wordIndex = null;
+			wordQuantizer = null;
+			wordMatrix = null;
+			indexedWords = null;
+			return;
+		}
+		if (indexedWords == bagofwords)
+			return;
 
-			// move centeroid into the center
-			if (newRandPos == 0) {
+		long start = System.nanoTime();
+		int dim = bagofwords.get(0).centroied.descriptor.length;
+		float[] centroids = new float[bagofwords.size() * dim];
+		for (int w = 0; w < bagofwords.size(); w++)
+			System.arraycopy(bagofwords.get(w).centroied.descriptor, 0,
+					centroids, w * dim, dim);
+		wordMatrix = scalarAssign ? null : new WordMatrix(centroids, dim);
+		wordIndex = kdTrees > 0 ? new KdForest(centroids, dim, kdTrees, seed)
+				: null;
+		wordQuantizer = wordIndex == null && pqSubspaces > 0 ? new ProductQuantizer(
+				centroids, dim, pqSubspaces, seed) : null;
+		indexedWords = bagofwords;
+		if (wordIndex != null)
+			System.out.println("Indexed " + bagofwords.size()
+					+ " visual words by " + kdTrees + " k-d trees in "
+					+ (System.nanoTime() - start) / 1000000 + "ms, "
+					+ kdChecks + " checks");
+		if (wordQuantizer != null)
+			System.out.println("Quantized " + bagofwords.size()
+					+ " visual words into " + pqSubspaces + " subspaces in "
+					+ (System.nanoTime() - start) / 1000000 + "ms, "
+					+ pqRerank + " reranked");
+	}
 
-				for (int c = 0; c < K; c++) {
-					int nrOfFeatures = centeroids[c].nearFeature.size();
-					float[] distanceLimit = new float[nrOfFeatures];
+	/**
+	 * @return the features of all images packed into one DescriptorMatrix,
+	 *         the DescriptorSampler sample of them if sampling is configured
+	 */
+	private static DescriptorMatrix allLearnFeatchers(List<IgsImage> images) {
+		if (sampling()) {
+			DescriptorMatrix sample = DescriptorSampler.sample(images,
+					maxDescriptorsPerImage, maxDescriptors, stratifiedSampling,
+					seed);
+			int all = 0;
+			for (IgsImage i : images)
+				all += i.features.size();
+			System.out.println("Sampled " + sample.size() + " of " + all
+					+ " descriptors" + (stratifiedSampling ? " by class" : ""));
+			return sample;
+		}
 
-					for (int i = 0; i < nrOfFeatures; i++) {
-						distanceLimit[i] = centeroids[c].nearFeature
-								.get(i)
-								.descriptorDistance(centeroids[c].centroied);
-					}
-					Arrays.sort(distanceLimit);
-					
-					int pos = (int) Math.ceil(nrOfFeatures * percent) -1;
-
-					for (int d = 0; d < nrOfDescElement; d++) {
-						double dx = 0.0;
-						for (int f = 0; f < pos; f++) {
-							dx += centeroids[c].nearFeature.get(f).descriptor[d];
-						}
-						centeroids[c].centroied.descriptor[d] = (float) (dx / pos);
-					}
+		int nrOfFeatures = 0;
+		for (IgsImage i : images)
+			nrOfFeatures += i.getFeatures().size();
+		DescriptorMatrix allLearnFeatchers = new DescriptorMatrix(
+				descriptorLength(), nrOfFeatures);
+		for (IgsImage i : images)
+			allLearnFeatchers.addAll(i.getFeatures());
+		return allLearnFeatchers;
+	}
 
-					centeroids[c].verificationValue = distanceLimit[pos];					
-				}
+	private static boolean sampling() {
+		return maxDescriptorsPerImage > 0 || maxDescriptors > 0;
+	}
 
-				if (!testAfterCenter) {
-					testAfterCenter = true;
-					newRandPos++;
-				}
-			} else {
-				testAfterCenter = false;
+	/**
+	 * Prints the quality of the visual words on all descriptors of the
+	 * images: the mean squared distance to the nearest word, the share of
+	 * the descriptors doClassifyVisualWord accepts, the number of words in
+	 * use and the perplexity of the word usage (K if all words are used
+	 * equally often)
+	 */
+	void reportVocabulary(List<IgsImage> images) {
+		int[] usage = new int[bagofwords.size()];
+		float[] distance = new float[1];
+		double squares = 0;
+		int descriptors = 0;
+		int accepted = 0;
+		for (IgsImage image : images) {
+			DescriptorMatrix m = image.getFeatures();
+			for (int f = 0; f < m.size(); f++) {
+				Integer word = nearestWord(m, f, distance);
+				if (word == null)
+					continue;
+				descriptors++;
+				squares += distance[0] * distance[0];
+				usage[word]++;
 			}
+			for (int word : visualWords(image))
+				if (word >= 0)
+					accepted++;
+		}
+
+		int used = 0;
+		double entropy = 0;
+		for (int u : usage) {
+			if (u == 0)
+				continue;
+			used++;
+			double p = (double) u / descriptors;
+			entropy -= p * Math.log(p);
+		}
+		System.out.println(String.format(
+				"Vocabulary quality on %d descriptors: mean squared distance %.4f, "
+						+ "%.1f%% accepted, %d of %d words used, perplexity %.1f",
+				descriptors, squares / Math.max(1, descriptors), 100.0
+						* accepted / Math.max(1, descriptors), used, usage.length,
+				Math.exp(entropy)));
+	}
+
+	/**
+	 * Creates the VisualWordHistogram of an image
+	 */
+	int[] visualWordHistogram(IgsImage image) {
+		int[] histogram = new int[bagofwords.size()];
+		for (int word : visualWords(image))
+			if (word >= 0)
+				histogram[word]++;
+		return histogram;
+	}
+
+	/**
+	 * Adds images to the imageIndex, a new one if the vocabulary has
+	 * changed since it has been built
+	 */
+	public void indexImages(Collection<IgsImage> images) {
+		int version = vocabularyVersion();
+		if (imageIndex == null || imageIndexVersion != version) {
+			imageIndex = new InvertedIndex(bagofwords.size());
+			indexedImages = new ArrayList<IgsImage>();
+			imageIndexVersion = version;
+		}
+		for (IgsImage image : images) {
+			imageIndex.add(visualWordHistogram(image));
+			indexedImages.add(image);
 		}
-		
-		return Arrays.asList(centeroids);
-		
+	}
+
+	/**
+	 * Searches the indexed images with the most similar VisualWordHistogram,
+	 * see indexImages
+	 * 
+	 * @return at most n images, the most similar first
+	 */
+	public List<IgsImage> findSimilarImages(IgsImage image, int n) {
+		List<IgsImage> similar = new ArrayList<IgsImage>();
+		if (imageIndex == null || imageIndexVersion != vocabularyVersion())
+			return similar;
+		for (InvertedIndex.Hit hit : imageIndex.search(
+				visualWordHistogram(image), n, retrievalScoring()))
+			similar.add(indexedImages.get(hit.image));
+		return similar;
+	}
+
+	/**
+	 * The visual words of the features of an image, see
+	 * doClassifyVisualWord. They are assigned once per vocabulary version
+	 * and stored in the image.
+	 * 
+	 * @return the class ID of each feature, -1 if it is rejected
+	 */
+	int[] visualWords(IgsImage image) {
+		int version = vocabularyVersion();
+		int[] words = image.getVisualWords(version);
+		if (words == null) {
+			DescriptorMatrix features = image.getFeatures();
+			words = assignVisualWords(features);
+			// released features are not reloadable before readImages ends
+			if (features != null)
+				image.setVisualWords(words, version);
+		}
+		return words;
+	}
+
+	/**
+	 * @return the current vocabulary version, a new one if bagofwords or
+	 *         vocabularyTree have been replaced since the last call
+	 */
+	private synchronized int vocabularyVersion() {
+		if (versionedWords != bagofwords || versionedTree != vocabularyTree) {
+			versionedWords = bagofwords;
+			versionedTree = vocabularyTree;
+			vocabularyVersion++;
+		}
+		return vocabularyVersion;
+	}
+
+	/**
+	 * @return the class ID of each feature, -1 if it is rejected
+	 */
+	private int[] assignVisualWords(DescriptorMatrix features) {
+		int size = features == null ? 0 : features.size();
+		int[] words = new int[size];
+		WordMatrix matrix = wordMatrix;
+		if (matrix != null && wordIndex == null && wordQuantizer == null
+				&& indexedWords == bagofwords) {
+			// all features at once
+			float[] distances = new float[size];
+			matrix.assign(features, 0, size, words, distances);
+			for (int f = 0; f < size; f++)
+				if (words[f] < 0
+						|| verifiedWord(words[f], distances[f]) == null)
+					words[f] = -1;
+			return words;
+		}
+
+		for (int f = 0; f < size; f++) {
+			Integer wordClass = doClassifyVisualWord(features, f);
+			words[f] = wordClass == null ? -1 : wordClass.intValue();
+		}
+		return words;
 	}
 
 	/* Do not change anything from here */
@@ -398,7 +884,7 @@ public class CbirWithSift extends JFrame {
 	// initial sigma
 	private static float initial_sigma = 1.6f;
 	// feature descriptor size
-	private static int fdsize = 4;
+	static int fdsize = 4;
 	// feature descriptor orientation bins
 	private static int fdbins = 8;
 	// size restrictions for scale octaves, use octaves < max_size and >
@@ -406,115 +892,187 @@ public class CbirWithSift extends JFrame {
 	private static int min_size = 64;
 	private static int max_size = 1024;
 
-	public CbirWithSift() throws IOException {
-		super("Clustering");
-		setVisible(true);
-		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		setSize(600, 600);
+	public CbirWithSift() {
+	}
 
-		Thread t = new Thread(new Runnable() {
-			public void run() {
+	public void addObserver(CbirObserver observer) {
+		observers.add(observer);
+	}
+
+	/**
+	 * Runs the whole pipeline: read the training images, calculate the
+	 * visual words, learn the decision model and verify it with the test
+	 * images. Prints the wall time of each stage at the end.
+	 */
+	public void run() throws IOException, InterruptedException {
+		startStage("Learning: readData");
+		// stream the training descriptors into the descriptorFile while they
+		// are read, their features are released to the feature cache
+		boolean streaming = loadVocabulary == null && descriptorFile != null
+				&& treeBranching == 0 && !sampling() && cacheDir != null;
+		DescriptorFile.Writer descriptors = streaming ? DescriptorFile.create(
+				new File(descriptorFile), descriptorLength()) : null;
+		LinkedList<IgsImage> trainingImages = null;
+		try {
+			trainingImages = readImages(trainingFolder, readImages,
+					descriptors);
+		} finally {
+			if (descriptors != null && trainingImages == null)
+				descriptors.abort();
+		}
+		if (descriptors != null)
+			descriptors.close();
+
+		startStage("Learning: VisualWord by Clustering");
+
+		// calculate the visual words with k-means
+		if (loadVocabulary != null) {
+			loadVocabulary(new File(loadVocabulary));
+		} else if (descriptorFile != null && treeBranching == 0) {
+			File file = new File(descriptorFile);
+			if (!streaming) {
+				DescriptorFile.Writer writer = DescriptorFile.create(file,
+						descriptorLength());
 				try {
+					writer.add(allLearnFeatchers(trainingImages));
+				} catch (IOException e) {
+					writer.abort();
+					throw e;
+				}
+				writer.close();
+			}
+			vocabularyTree = null;
+			bagofwords = doClusteringVisualWords(file, K, MIN_CLASS_SIZE);
+		} else if (treeBranching > 0) {
+			DescriptorMatrix allLearnFeatchers = allLearnFeatchers(trainingImages);
+			vocabularyTree = doClusteringVocabularyTree(allLearnFeatchers,
+					treeBranching, treeDepth, MIN_CLASS_SIZE);
+			bagofwords = vocabularyTree.words();
+		} else {
+			vocabularyTree = null;
+			bagofwords = doClusteringVisualWords(
+					allLearnFeatchers(trainingImages), K, MIN_CLASS_SIZE);
+		}
+		indexVocabulary();
+		if (saveVocabulary != null)
+			VocabularyFile.write(new File(saveVocabulary), bagofwords,
+					vocabularyTree);
+		if (vocabularyReport) {
+			// also assigns the visual words of the training images
+			startStage("Learning: vocabulary report");
+			reportVocabulary(trainingImages);
+		}
 
-					setTitle("Learning: readData");
-					LinkedList<IgsImage> trainingImages = readImages(
-							"training", readImages);
-
-					setTitle("Learning: VisualWord by Clustering");
-
-					Vector<Feature> allLearnFeatchers = new Vector<Feature>();
-					for (IgsImage i : trainingImages)
-						allLearnFeatchers.addAll(i.features);
-
-					long startTimeVW = System.currentTimeMillis();
-					// calculate the visual words with k-means
-					bagofwords = doClusteringVisualWords(
-							(Feature[]) allLearnFeatchers
-									.toArray(new Feature[0]), K, MIN_CLASS_SIZE);
-					long endTimeVW = System.currentTimeMillis();
-
-					setTitle("Show: visualWords in TraningsData");
-					Map<String, Vector<int[]>> imageContentTrainingData = new HashMap<String, Vector<int[]>>();
-
-					// create the VisiualWordHistograms for each training image
-					for (IgsImage i : trainingImages) {
-						if (!imageContentTrainingData.containsKey(i.className))
-							imageContentTrainingData.put(i.className,
-									new Vector<int[]>());
-						int[] ImageVisualWordHistogram = new int[K];
-
-						for (Feature f : i.features) {
-							Integer wordClass = doClassifyVisualWord(f);
-							if (wordClass != null)
-								ImageVisualWordHistogram[wordClass.intValue()]++;
-						}
+		startStage("Show: visualWords in TraningsData");
+		Map<String, Vector<int[]>> imageContentTrainingData = new HashMap<String, Vector<int[]>>();
 
-						imageContentTrainingData.get(i.className).add(
-								ImageVisualWordHistogram);
+		// create the VisiualWordHistograms for each training image
+		for (IgsImage i : trainingImages) {
+			if (!imageContentTrainingData.containsKey(i.className))
+				imageContentTrainingData.put(i.className, new Vector<int[]>());
+			int[] ImageVisualWordHistogram = visualWordHistogram(i);
 
-						cur_image = i;
-						repaint();
-						Thread.sleep(wait);
-					}
+			imageContentTrainingData.get(i.className).add(
+					ImageVisualWordHistogram);
 
-					long startTimeDM = System.currentTimeMillis();
-					setTitle("Learning: decisionModel");
-					decisionModel = doLearnDecisionModel(imageContentTrainingData);
-					long endTimeDM = System.currentTimeMillis();
+			imageProcessed(i);
+		}
 
-					setTitle("Testing: readData");
-					LinkedList<IgsImage> testImages = readImages("test",
-							readImages);
+		startStage("Learning: decisionModel");
+		decisionModel = doLearnDecisionModel(imageContentTrainingData);
 
-					long startTime = System.currentTimeMillis();
+		startStage("Testing: readData");
+		LinkedList<IgsImage> testImages = readImages(testFolder, readImages);
 
-					int success = 0;
-					setTitle("Verify: test data");
+		int success = 0;
+		startStage("Verify: test data");
 
-					// create the VisiualWordHistograms for each test image and
-					// classify it
-					for (IgsImage i : testImages) {
-						int[] ImageVisualWordHistogram = new int[K];
+		// create the VisiualWordHistograms for each test image and
+		// classify it
+		for (IgsImage i : testImages) {
+			int[] ImageVisualWordHistogram = visualWordHistogram(i);
 
-						for (Feature f : i.features) {
-							Integer wordClass = doClassifyVisualWord(f);
-							if (wordClass != null)
-								ImageVisualWordHistogram[wordClass.intValue()]++;
-						}
+			i.classifiedName = doClassifyImageContent(ImageVisualWordHistogram)
+					.toString();
 
-						i.classifiedName = doClassifyImageContent(
-								ImageVisualWordHistogram).toString();
+			if (i.isClassificationCorect())
+				success++;
 
-						if (i.isClassificationCorect())
-							success++;
+			imageProcessed(i);
+		}
 
-						cur_image = i;
-						repaint();
-						Thread.sleep(wait);
-					}
+		if (retrieve > 0) {
+			startStage("Retrieval: test data");
+			indexImages(trainingImages);
+			long start = System.nanoTime();
+			int relevant = 0;
+			for (IgsImage i : testImages)
+				for (IgsImage similar : findSimilarImages(i, retrieve))
+					if (similar.className.equals(i.className))
+						relevant++;
+			System.out.println(String.format(
+					"Retrieved the %d most similar of %d training images "
+							+ "(%d postings) for %d test images: "
+							+ "precision %.1f%%, %.1fus per query", retrieve,
+					imageIndex.size(), imageIndex.postings(), testImages
+							.size(), 100.0 * relevant
+							/ Math.max(1, retrieve * testImages.size()),
+					(System.nanoTime() - start) / 1000.0
+							/ Math.max(1, testImages.size())));
+		}
+		endStage();
+
+		System.out.println("Verified "
+				+ (success / (double) testImages.size()) * 100 + "% in "
+				+ stageTimes.get("Verify: test data") + "ms");
+		System.out.println("Learned " + bagofwords.size() + " Visual Words in: "
+				+ stageTimes.get("Learning: VisualWord by Clustering") + "ms!");
+		System.out.println("Learned the image classification in: "
+				+ stageTimes.get("Learning: decisionModel") + "ms");
+
+		System.out.println("Stage timings:");
+		for (Entry<String, Long> e : stageTimes.entrySet())
+			System.out.println(String.format("  %-36s %8dms", e.getKey(),
+					e.getValue()));
+	}
 
-					long endTime = System.currentTimeMillis();
+	private void startStage(String title) {
+		endStage();
+		stage = title;
+		stageStart = System.currentTimeMillis();
+		for (CbirObserver o : observers)
+			o.stageStarted(title);
+	}
 
-					System.out.println("Verified "
-							+ (success / (double) testImages.size()) * 100
-							+ "% in " + (endTime - startTime) + "ms");
-					System.out.println("Learned " + K + " Visual Words in: "
-							+ (endTimeVW - startTimeVW) + "ms!");
-					System.out.println("Learned the image classification in: "
-							+ (endTimeDM - startTimeDM) + "ms");
+	private void endStage() {
+		if (stage != null)
+			stageTimes.put(stage, System.currentTimeMillis() - stageStart);
+		stage = null;
+	}
 
-				} catch (Exception _e) {
-					_e.printStackTrace();
-				}
-			}
-		});
-		t.setDaemon(true);
-		t.start();
+	private void imageProcessed(IgsImage image) throws InterruptedException {
+		for (CbirObserver o : observers)
+			o.imageProcessed(image);
 	}
 
 	/**
 	 * Reads maxImages from a folder, calculates the SIFT features and wraps the
-	 * results into a IgsImage also paints each image on the GUI
+	 * results into a IgsImage also shows each image on the observers
+	 * 
+	 * The images are decoded and processed by a pool of worker threads. At
+	 * most 2 * threads images are in flight at once, the results are
+	 * collected in file name order, so the returned list does not depend on
+	 * the number of threads.
+	 * 
+	 * Features of images which are unchanged since the last run are taken
+	 * from the FeatureCache of the folder instead, such images are not even
+	 * decoded. The DatasetManifest of the folder tells which files are
+	 * unchanged by size and modification time, only added or changed files
+	 * are read and hashed. Deleted files are dropped from both.
+	 * 
+	 * Unless keepImages is set the bitmaps are released as soon as the
+	 * features are extracted, so the heap use depends on the number of
+	 * features only. IgsImage.getImage() reloads a bitmap for the GUI.
 	 * 
 	 * @param folder
 	 * @param maxImages
@@ -524,97 +1082,290 @@ public class CbirWithSift extends JFrame {
 	 */
 	LinkedList<IgsImage> readImages(String folder, int maxImages)
 			throws IOException, InterruptedException {
-		LinkedList<IgsImage> images = new LinkedList<IgsImage>();
-
-		File actual = new File("./images/" + folder);
-
-		int i = 0;
-
-		for (File f : actual.listFiles()) {
-			if (i++ > maxImages)
-				break;
-			IgsImage image = new IgsImage();
-			image.image = ImageIO.read(f);
-			image.className = f.getName()
-					.substring(0, f.getName().indexOf('_'));
-			image.features = calculateSift(image.image);
-
-			cur_image = image;
-			repaint();
-			Thread.sleep(wait);
-
-			images.add(image);
-		}
-
-		return images;
+		return readImages(folder, maxImages, null);
 	}
 
 	/**
-	 * draws a rotated square with center point center, having size and
-	 * orientation
+	 * Reads the images like readImages(folder, maxImages) and appends the
+	 * descriptors of each image to a DescriptorFile as soon as it is read.
+	 * With a feature cache the features are then released, the cache file
+	 * is rewritten image by image and IgsImage.getFeatures() reloads them
+	 * from it, so the heap use does not depend on the number of features.
+	 * 
+	 * @param descriptors
+	 *            receives the descriptors of all images in file name order,
+	 *            null = none
 	 */
-	static void drawSquare(Graphics _g, double[] o, double scale,
-			double orient, Integer _class) {
-		scale /= 2;
+	LinkedList<IgsImage> readImages(String folder, int maxImages,
+			DescriptorFile.Writer descriptors) throws IOException,
+			InterruptedException {
+		LinkedList<IgsImage> images = new LinkedList<IgsImage>();
 
-		double sin = Math.sin(orient);
-		double cos = Math.cos(orient);
+		File actual = new File(folder);
+		File[] files = actual.listFiles();
+		if (files == null)
+			throw new IOException("can not read folder " + actual);
+		// listFiles() gives no order guarantee
+		Arrays.sort(files);
+		int count = Math.min(files.length, maxImages + 1);
+
+		final FeatureCache cache = cacheDir == null ? null : FeatureCache
+				.open(new File(cacheDir, actual.getName() + ".features"));
+		final DatasetManifest manifest = cacheDir == null ? null
+				: DatasetManifest.open(new File(cacheDir, actual.getName()
+						+ ".manifest"));
+
+		FeatureCache.Writer cacheWriter = descriptors != null && cache != null ? cache
+				.writer() : null;
+		boolean complete = false;
+
+		long startTime = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayDeque<Future<IgsImage>> pending = new ArrayDeque<Future<IgsImage>>();
+			int next = 0;
+			while (next < count || !pending.isEmpty()) {
+				// keep the pool busy, but bound the number of decoded images
+				while (next < count && pending.size() < 2 * threads) {
+					final File f = files[next++];
+					pending.add(pool.submit(new Callable<IgsImage>() {
+						public IgsImage call() throws IOException {
+							return readImage(f, cache, manifest);
+						}
+					}));
+				}
 
-		int[] x = new int[6];
-		int[] y = new int[6];
+				IgsImage image;
+				try {
+					image = pending.poll().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException(e.getCause());
+				}
 
-		x[0] = (int) (o[0] + (sin - cos) * scale);
-		y[0] = (int) (o[1] - (sin + cos) * scale);
+				imageProcessed(image);
 
-		x[1] = (int) o[0];
-		y[1] = (int) o[1];
+				if (descriptors != null) {
+					descriptors.add(image.features);
+					if (cacheWriter != null) {
+						cacheWriter.add(image);
+						image.releaseFeatures();
+					}
+				}
+				images.add(image);
+			}
+			complete = true;
+		} finally {
+			pool.shutdownNow();
+			if (!complete && cacheWriter != null)
+				cacheWriter.abort();
+		}
 
-		x[2] = (int) (o[0] + (sin + cos) * scale);
-		y[2] = (int) (o[1] + (sin - cos) * scale);
-		x[3] = (int) (o[0] - (sin - cos) * scale);
-		y[3] = (int) (o[1] + (sin + cos) * scale);
-		x[4] = (int) (o[0] - (sin + cos) * scale);
-		y[4] = (int) (o[1] - (sin - cos) * scale);
-		x[5] = x[0];
-		y[5] = y[0];
+		long time = Math.max(1, System.currentTimeMillis() - startTime);
+		System.out.println("Read " + images.size() + " images from " + folder
+				+ " in " + time + "ms (" + (images.size() * 1000L / time)
+				+ " images/s, " + threads + " threads)");
 
-		// if(_class==null || _class.intValue()==92 || _class.intValue()==69 ||
-		// _class.intValue()==91) {
+		if (manifest != null) {
+			System.out.println("Refreshed " + folder + ": " + manifest.summary());
+			manifest.write();
+		}
 
-		_g.setColor(Color.red);
-		_g.drawPolygon(new Polygon(x, y, x.length));
-		_g.setColor(Color.yellow);
-		if (_class != null)
-			_g.drawString(_class + "", x[0], y[0]);
-		// }
+		if (cache != null) {
+			int cached = 0;
+			for (IgsImage image : images)
+				if (cache.contains(image.featureKey))
+					cached++;
+			System.out.println(cached + " of " + images.size()
+					+ " images taken from the feature cache");
+			if (cacheWriter != null) {
+				FeatureCache written = cacheWriter.close();
+				for (IgsImage image : images)
+					image.setFeatureCache(written);
+			} else if (cached < images.size() || cache.size() != images.size())
+				cache.write(images);
+		}
 
+		return images;
 	}
 
-	@Override
-	public synchronized void paint(Graphics _g) {
-
-		_g.clearRect(0, 0, 1000, 1000);
+	/**
+	 * Decodes a single image file and calculates its SIFT features, called by
+	 * the worker threads of readImages
+	 * 
+	 * @param cache
+	 *            the features cache of the folder or null
+	 * @param manifest
+	 *            the manifest of the folder, null if there is no cache
+	 */
+	private static IgsImage readImage(File f, FeatureCache cache,
+			DatasetManifest manifest) throws IOException {
+		IgsImage image = new IgsImage();
+		image.file = f;
+		image.className = f.getName().substring(0, f.getName().indexOf('_'));
+
+		// an unchanged image is not even read if its features are cached
+		if (cache != null) {
+			long size = f.length();
+			long lastModified = f.lastModified();
+			String hash = manifest.unchangedHash(f);
+			if (hash != null) {
+				image.featureKey = FeatureCache.key(hash, siftParameters());
+				image.features = cache.get(image.featureKey);
+				if (image.features != null) {
+					manifest.put(f, size, lastModified, hash, false);
+					return image;
+				}
+			}
+		}
 
-		if (cur_image == null)
-			return;
+		long lastModified = f.lastModified();
+		byte[] content = Files.readAllBytes(f.toPath());
+		if (cache != null) {
+			String hash = FeatureCache.contentHash(content);
+			manifest.put(f, content.length, lastModified, hash, true);
+			image.featureKey = FeatureCache.key(hash, siftParameters());
+			image.features = cache.get(image.featureKey);
+			if (image.features != null)
+				return image;
+		}
 
-		_g.drawImage(cur_image.image, 0, 0, null);
+		image.image = ImageIO.read(new ByteArrayInputStream(content));
+		if (image.image == null)
+			throw new IOException("can not decode " + f);
+		Vector<Feature> features = calculateSift(image.image);
+		image.features = new DescriptorMatrix(descriptorLength(),
+				features.size());
+		for (Feature feature : features)
+			image.features.add(feature);
+		if (!keepImages)
+			image.image = null;
+		return image;
+	}
 
-		_g.setColor(cur_image.isClassificationCorect() ? Color.green
-				: Color.red);
+	/**
+	 * @return the length of a SIFT feature descriptor
+	 */
+	static int descriptorLength() {
+		return fdsize * fdsize * fdbins;
+	}
 
-		_g.drawString(cur_image.className + " > " + cur_image.classifiedName,
-				20, cur_image.image.getHeight() + 40);
+	/**
+	 * @return all parameters which have an influence on the result of
+	 *         calculateSift, part of the feature cache key
+	 */
+	static String siftParameters() {
+		return "steps=" + steps + ";initial_sigma=" + initial_sigma
+				+ ";fdsize=" + fdsize + ";fdbins=" + fdbins + ";min_size="
+				+ min_size + ";max_size=" + max_size + ";maxImageSize="
+				+ maxImageSize + ";maxFeatures=" + maxFeatures;
+	}
 
-		if (cur_image.features != null)
-			for (Feature f : cur_image.features)
-				drawSquare(_g, new double[] { f.location[0], f.location[1] },
-						fdsize * 4.0 * (double) f.scale,
-						(double) f.orientation, doClassifyVisualWord(f));
+	/**
+	 * Converts an image into a grayscale FloatArray2D. The common raster
+	 * types are read directly from the DataBuffer, all other types take the
+	 * getRGB path of ImageToFloatArray2DGeneric. Both produce exactly the
+	 * same values.
+	 */
+	public static FloatArray2D ImageToFloatArray2D(BufferedImage image)
+			throws IOException {
+		WritableRaster raster = image.getRaster();
+		// a sub image shares the data buffer of its parent
+		if (raster.getParent() != null
+				|| raster.getSampleModelTranslateX() != 0
+				|| raster.getSampleModelTranslateY() != 0)
+			return ImageToFloatArray2DGeneric(image);
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		DataBuffer buffer = raster.getDataBuffer();
+
+		switch (image.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB: {
+			FloatArray2D image_float = new FloatArray2D(width, height);
+			int stride = ((SinglePixelPackedSampleModel) raster
+					.getSampleModel()).getScanlineStride();
+			int[] pixels = ((DataBufferInt) buffer).getData();
+			int count = 0;
+			for (int y = 0; y < height; y++) {
+				int p = buffer.getOffset() + y * stride;
+				for (int x = 0; x < width; x++) {
+					int rgbV = pixels[p++];
+					int b = rgbV & 0xff;
+					rgbV = rgbV >> 8;
+					int g = rgbV & 0xff;
+					rgbV = rgbV >> 8;
+					int r = rgbV & 0xff;
+					image_float.data[count++] = 0.3f * r + 0.6f * g + 0.1f * b;
+				}
+			}
+			return image_float;
+		}
+		case BufferedImage.TYPE_3BYTE_BGR: {
+			FloatArray2D image_float = new FloatArray2D(width, height);
+			ComponentSampleModel sm = (ComponentSampleModel) raster
+					.getSampleModel();
+			int stride = sm.getScanlineStride();
+			int pixelStride = sm.getPixelStride();
+			int[] bandOffsets = sm.getBandOffsets();
+			byte[] pixels = ((DataBufferByte) buffer).getData();
+			int count = 0;
+			for (int y = 0; y < height; y++) {
+				int p = buffer.getOffset() + y * stride;
+				for (int x = 0; x < width; x++) {
+					int r = pixels[p + bandOffsets[0]] & 0xff;
+					int g = pixels[p + bandOffsets[1]] & 0xff;
+					int b = pixels[p + bandOffsets[2]] & 0xff;
+					image_float.data[count++] = 0.3f * r + 0.6f * g + 0.1f * b;
+					p += pixelStride;
+				}
+			}
+			return image_float;
+		}
+		case BufferedImage.TYPE_BYTE_GRAY: {
+			// getRGB maps the gray values through the color model, do the
+			// same once per gray value
+			float[] lut = new float[256];
+			ColorModel cm = image.getColorModel();
+			for (int v = 0; v < 256; v++) {
+				int rgbV = cm.getRGB(new byte[] { (byte) v });
+				int b = rgbV & 0xff;
+				rgbV = rgbV >> 8;
+				int g = rgbV & 0xff;
+				rgbV = rgbV >> 8;
+				int r = rgbV & 0xff;
+				lut[v] = 0.3f * r + 0.6f * g + 0.1f * b;
+			}
 
+			FloatArray2D image_float = new FloatArray2D(width, height);
+			ComponentSampleModel sm = (ComponentSampleModel) raster
+					.getSampleModel();
+			int stride = sm.getScanlineStride();
+			int pixelStride = sm.getPixelStride();
+			int bandOffset = sm.getBandOffsets()[0];
+			byte[] pixels = ((DataBufferByte) buffer).getData();
+			int count = 0;
+			for (int y = 0; y < height; y++) {
+				int p = buffer.getOffset() + y * stride + bandOffset;
+				for (int x = 0; x < width; x++) {
+					image_float.data[count++] = lut[pixels[p] & 0xff];
+					p += pixelStride;
+				}
+			}
+			return image_float;
+		}
+		default:
+			return ImageToFloatArray2DGeneric(image);
+		}
 	}
 
-	public static FloatArray2D ImageToFloatArray2D(BufferedImage image)
+	/**
+	 * Converts an image into a grayscale FloatArray2D pixel by pixel using
+	 * getRGB, works for all image types
+	 */
+	public static FloatArray2D ImageToFloatArray2DGeneric(BufferedImage image)
 			throws IOException {
 		FloatArray2D image_float = null;
 
@@ -636,33 +1387,299 @@ public class CbirWithSift extends JFrame {
 		return image_float;
 	}
 
+	/**
+	 * usage: java CbirWithSift [options]
+	 * 
+	 * <pre>
+	 * -headless           run without GUI
+	 * -K n                number of visual words
+	 * -steps n            number of SIFT steps per octave
+	 * -minClassSize n     minimum members of a visual word
+	 * -training folder    folder of the training images
+	 * -test folder        folder of the test images
+	 * -maxImages n        how many images to read from each folder
+	 * -threads n          worker threads for SIFT and clustering
+	 * -seed n             seed of the k-means start points
+	 * -seeding random|kmeans++|kmeans||  how the start points are chosen
+	 * -treeBranching n    learn a vocabulary tree with n children per node
+	 * -treeDepth n        depth of the vocabulary tree
+	 * -miniBatch n        mini-batch k-means with n points per batch
+	 * -miniBatchIterations n  maximum number of batches
+	 * -miniBatchPatience n    stop after n batches without improvement
+	 * -learningRateDecay f    mini-batch learning rate 1 / members^f
+	 * -progress n         print every n-th clustering iteration, 0 = none
+	 * -checkpoint file    checkpoint the k-means, resume from the file
+	 * -checkpointInterval s   seconds between two checkpoints
+	 * -loadVocabulary file  use the visual words of a vocabulary file
+	 * -saveVocabulary file  save the learned visual words to a file
+	 * -maxDescriptorsPerImage n  learn from at most n descriptors per image
+	 * -maxDescriptors n   learn from a sample of at most n descriptors
+	 * -stratified         share maxDescriptors equally by the image classes
+	 * -vocabularyReport   print the quality of the visual words
+	 * -scalarAssign       assign the features of an image one by one
+	 * -retrieve n         search the n most similar training images of
+	 *                     each test image
+	 * -retrievalScoring bm25|tfidf  how the similar images are ranked
+	 * -kdTrees n          find the nearest word with n randomized k-d trees
+	 * -kdChecks n         words compared by the k-d tree search
+	 * -pqSubspaces n      find the nearest word by product quantization
+	 *                     with n subspaces
+	 * -pqRerank n         best estimates compared exactly
+	 * -outOfCore file     cluster out of core, streaming the descriptors
+	 *                     from this file. The training features are written
+	 *                     to it while they are read and released to the
+	 *                     feature cache, with sampling or -cache none they
+	 *                     are all kept in memory.
+	 * -jarSift            use the SIFT detector of Java_SIFT.jar
+	 * -maxImageSize n     downscale larger images before SIFT
+	 * -maxFeatures n      keep the n largest features of each image
+	 * -cache folder|none  folder of the feature cache
+	 * -keepImages         keep all bitmaps in memory
+	 * -trainingTime min   learn time of the decision model
+	 * -wait ms            GUI delay after each image
+	 * </pre>
+	 */
 	public static void main(String[] _args) throws Exception {
-		new CbirWithSift();
+		boolean headless = false;
+		int wait = 0;
+
+		for (int a = 0; a < _args.length; a++) {
+			String arg = _args[a];
+			if ("-headless".equals(arg)) {
+				headless = true;
+			} else if ("-keepImages".equals(arg)) {
+				keepImages = true;
+			} else if ("-jarSift".equals(arg)) {
+				jarSift = true;
+			} else if ("-stratified".equals(arg)) {
+				stratifiedSampling = true;
+			} else if ("-vocabularyReport".equals(arg)) {
+				vocabularyReport = true;
+			} else if ("-scalarAssign".equals(arg)) {
+				scalarAssign = true;
+			} else if (a + 1 < _args.length) {
+				String value = _args[++a];
+				if ("-K".equals(arg))
+					K = Integer.parseInt(value);
+				else if ("-steps".equals(arg))
+					steps = Integer.parseInt(value);
+				else if ("-minClassSize".equals(arg))
+					MIN_CLASS_SIZE = Integer.parseInt(value);
+				else if ("-training".equals(arg))
+					trainingFolder = value;
+				else if ("-test".equals(arg))
+					testFolder = value;
+				else if ("-maxImages".equals(arg))
+					readImages = Integer.parseInt(value);
+				else if ("-threads".equals(arg))
+					threads = Integer.parseInt(value);
+				else if ("-seed".equals(arg))
+					seed = Long.parseLong(value);
+				else if ("-seeding".equals(arg))
+					seeding = value;
+				else if ("-treeBranching".equals(arg))
+					treeBranching = Integer.parseInt(value);
+				else if ("-treeDepth".equals(arg))
+					treeDepth = Integer.parseInt(value);
+				else if ("-miniBatch".equals(arg))
+					miniBatchSize = Integer.parseInt(value);
+				else if ("-miniBatchIterations".equals(arg))
+					miniBatchIterations = Integer.parseInt(value);
+				else if ("-miniBatchPatience".equals(arg))
+					miniBatchPatience = Integer.parseInt(value);
+				else if ("-learningRateDecay".equals(arg))
+					learningRateDecay = Float.parseFloat(value);
+				else if ("-progress".equals(arg))
+					progress = Integer.parseInt(value);
+				else if ("-checkpoint".equals(arg))
+					checkpointFile = value;
+				else if ("-checkpointInterval".equals(arg))
+					checkpointInterval = Integer.parseInt(value);
+				else if ("-loadVocabulary".equals(arg))
+					loadVocabulary = value;
+				else if ("-saveVocabulary".equals(arg))
+					saveVocabulary = value;
+				else if ("-maxDescriptorsPerImage".equals(arg))
+					maxDescriptorsPerImage = Integer.parseInt(value);
+				else if ("-maxDescriptors".equals(arg))
+					maxDescriptors = Integer.parseInt(value);
+				else if ("-kdTrees".equals(arg))
+					kdTrees = Integer.parseInt(value);
+				else if ("-kdChecks".equals(arg))
+					kdChecks = Integer.parseInt(value);
+				else if ("-pqSubspaces".equals(arg))
+					pqSubspaces = Integer.parseInt(value);
+				else if ("-pqRerank".equals(arg))
+					pqRerank = Integer.parseInt(value);
+				else if ("-retrieve".equals(arg))
+					retrieve = Integer.parseInt(value);
+				else if ("-retrievalScoring".equals(arg))
+					retrievalScoring = value;
+				else if ("-outOfCore".equals(arg))
+					descriptorFile = value;
+				else if ("-maxImageSize".equals(arg))
+					maxImageSize = Integer.parseInt(value);
+				else if ("-maxFeatures".equals(arg))
+					maxFeatures = Integer.parseInt(value);
+				else if ("-cache".equals(arg))
+					cacheDir = "none".equals(value) ? null : value;
+				else if ("-trainingTime".equals(arg))
+					trainingTime = Integer.parseInt(value);
+				else if ("-wait".equals(arg))
+					wait = Integer.parseInt(value);
+				else
+					usage(arg);
+			} else {
+				usage(arg);
+			}
+		}
+
+		final CbirWithSift cbir = new CbirWithSift();
+		if (headless) {
+			cbir.run();
+			return;
+		}
+
+		cbir.addObserver(new CbirViewer(cbir, wait));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					cbir.run();
+				} catch (Exception _e) {
+					_e.printStackTrace();
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
 	}
 
-	private Vector<Feature> calculateSift(BufferedImage image)
+	private static void usage(String arg) {
+		System.err.println("unknown option " + arg
+				+ ", see CbirWithSift.main for the options");
+		System.exit(1);
+	}
+
+	private static Vector<Feature> calculateSift(BufferedImage image)
 			throws IOException {
 
 		Vector<Feature> _features = new Vector<Feature>();
 
-		FloatArray2DSIFT sift = new FloatArray2DSIFT(fdsize, fdbins);
-
 		FloatArray2D fa = ImageToFloatArray2D(image);
-		Filter.enhance(fa, 1.0f);
 
-		fa = Filter.computeGaussianFastMirror(fa,
-				(float) Math.sqrt(initial_sigma * initial_sigma - 0.25));
+		// downscale large images, the features are mapped back to the
+		// coordinates of the original image below
+		float factor = 1;
+		if (maxImageSize > 0 && Math.max(fa.width, fa.height) > maxImageSize) {
+			factor = Math.max(fa.width, fa.height) / (float) maxImageSize;
+			fa = downscale(fa, factor);
+		}
+
+		fa = prepareSift(fa);
 
 		long start_time = System.currentTimeMillis();
 //		System.out.print("processing SIFT ...");
 
-		sift.init(fa, steps, initial_sigma, min_size, max_size);
-		_features = sift.run(max_size);
+		if (jarSift)
+			_features = runSift(sift.get(), fa);
+		else
+			_features = runSift(detector.get(), fa);
 
 //		System.out.println(" took " + (System.currentTimeMillis() - start_time)
 //				+ "ms to find \t" + _features.size() + " features");
 
+		if (maxFeatures > 0 && _features.size() > maxFeatures) {
+			// Feature.compareTo sorts by decreasing scale
+			Collections.sort(_features);
+			_features.setSize(maxFeatures);
+		}
+
+		if (factor != 1) {
+			for (Feature f : _features) {
+				f.location[0] = (f.location[0] + 0.5f) * factor - 0.5f;
+				f.location[1] = (f.location[1] + 0.5f) * factor - 0.5f;
+				f.scale *= factor;
+			}
+		}
+
 		return _features;
 	}
 
+	/**
+	 * Enhances the contrast of an image and smoothes it to the initial sigma
+	 * of the scale space
+	 */
+	static FloatArray2D prepareSift(FloatArray2D fa) {
+		FastFilter.enhance(fa, 1.0f);
+		return FastFilter.computeGaussianFastMirror(fa,
+				(float) Math.sqrt(initial_sigma * initial_sigma - 0.25));
+	}
+
+	static FloatArray2DSIFT newJarSift() {
+		return new FloatArray2DSIFT(fdsize, fdbins);
+	}
+
+	/**
+	 * @param pool
+	 *            runs the octaves and levels of an image in parallel, null =
+	 *            sequential
+	 */
+	static SiftDetector newSiftDetector(ForkJoinPool pool) {
+		return new SiftDetector(fdsize, fdbins, pool);
+	}
+
+	/**
+	 * @return the features of an image prepared by prepareSift
+	 */
+	static Vector<Feature> runSift(FloatArray2DSIFT sift, FloatArray2D fa) {
+		sift.init(fa, steps, initial_sigma, min_size, max_size);
+		return sift.run(max_size);
+	}
+
+	static Vector<Feature> runSift(SiftDetector sift, FloatArray2D fa) {
+		sift.init(fa, steps, initial_sigma, min_size, max_size);
+		return sift.run(max_size);
+	}
+
+	private static synchronized ForkJoinPool pool() {
+		if (pool == null && threads > 1)
+			pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/**
+	 * Shrinks an image by factor, each target pixel is the average of the
+	 * source area it covers
+	 */
+	static FloatArray2D downscale(FloatArray2D fa, float factor) {
+		int width = Math.max(1, (int) (fa.width / factor));
+		int height = Math.max(1, (int) (fa.height / factor));
+
+		FloatArray2D rows = new FloatArray2D(width, fa.height);
+		for (int y = 0; y < fa.height; y++)
+			areaAverage(fa.data, y * fa.width, 1, fa.width, rows.data, y
+					* width, 1, width, factor);
+
+		FloatArray2D result = new FloatArray2D(width, height);
+		for (int x = 0; x < width; x++)
+			areaAverage(rows.data, x, width, fa.height, result.data, x, width,
+					height, factor);
+		return result;
+	}
+
+	private static void areaAverage(float[] src, int srcOffset, int srcStep,
+			int srcCount, float[] dst, int dstOffset, int dstStep,
+			int dstCount, float factor) {
+		for (int i = 0; i < dstCount; i++) {
+			float start = i * factor;
+			float end = Math.min(start + factor, srcCount);
+			float sum = 0;
+			for (int j = (int) start; j < end; j++) {
+				float overlap = Math.min(end, j + 1) - Math.max(start, j);
+				sum += overlap * src[srcOffset + j * srcStep];
+			}
+			dst[dstOffset + i * dstStep] = sum / (end - start);
+		}
+	}
+
 }
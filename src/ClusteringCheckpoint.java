@@ -0,0 +1,251 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+/**
+ * The state of a full k-means clustering between two iterations, written to
+ * a small binary file so an interrupted run can be resumed. A resumed run
+ * gives the same visual words as an uninterrupted one: the centroids and
+ * the random number generator are restored exactly, the nearest centroids
+ * of the points are recomputed by the first assignment.
+ *
+ * The input is identified by its size and a fingerprint of its
+ * descriptors, a checkpoint of other points or other parameters is not
+ * resumed.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int MAGIC, int VERSION,
+ * long fingerprint, int n, int k, int dimension, int minCount,
+ * long seed, int seeding,
+ * int iterations, int reseedRounds, int reseeded,
+ * boolean testAfterCenter, float histogramMax,
+ * float[k * dimension] centroids, float[k] verificationValues,
+ * boolean[k] reseededCentroids,
+ * int length, byte[length] serialized java.util.Random
+ * </pre>
+ */
+public class ClusteringCheckpoint {
+
+	private static final int MAGIC = 0x4B4D4350; // "KMCP"
+	private static final int VERSION = 1;
+
+	// rows of a DescriptorFile included in its fingerprint
+	private static final int FINGERPRINT_ROWS = 4096;
+
+	// upper bound of the serialized random state, a java.util.Random takes
+	// about 100 bytes
+	private static final int MAX_RANDOM_SIZE = 1024;
+
+	// the serialized random state may only hold a java.util.Random, a
+	// checkpoint file must not instantiate any other class
+	private static final ObjectInputFilter RANDOM_ONLY = ObjectInputFilter.Config
+			.createFilter("java.util.Random;maxdepth=1;maxrefs=1;maxbytes=1024;!*");
+
+	// identifies the input and the parameters
+	long fingerprint;
+	int n;
+	int k;
+	int dimension;
+	int minCount;
+	long seed;
+	int seeding;
+
+	// the state of the cluster search loop
+	int iterations;
+	int reseedRounds;
+	int reseeded;
+	boolean testAfterCenter;
+
+	// upper end of the distance histograms of OutOfCoreKMeans
+	float histogramMax;
+
+	float[] centroids;
+	float[] verificationValues;
+	boolean[] reseededCentroids;
+	Random rnd;
+
+	/**
+	 * @return true if this checkpoint was written for the same input and
+	 *         parameters as other
+	 */
+	boolean matches(ClusteringCheckpoint other) {
+		return fingerprint == other.fingerprint && n == other.n
+				&& k == other.k && dimension == other.dimension
+				&& minCount == other.minCount && seed == other.seed
+				&& seeding == other.seeding;
+	}
+
+	/**
+	 * Reads a checkpoint of the given input and parameters, a missing,
+	 * unreadable or corrupt file or one of other input gives null
+	 *
+	 * @param expected
+	 *            the identification of the run, see matches
+	 */
+	static ClusteringCheckpoint read(File file, ClusteringCheckpoint expected) {
+		if (!file.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 1 << 16));
+			try {
+				return read(in, expected);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("ignoring checkpoint " + file + ": "
+					+ e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			// e.g. a corrupt serialized random state
+			System.err.println("ignoring checkpoint " + file + ": " + e);
+			return null;
+		}
+	}
+
+	private static ClusteringCheckpoint read(DataInputStream in,
+			ClusteringCheckpoint expected) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			throw new IOException("unknown file format");
+		ClusteringCheckpoint c = new ClusteringCheckpoint();
+		c.fingerprint = in.readLong();
+		c.n = in.readInt();
+		c.k = in.readInt();
+		c.dimension = in.readInt();
+		c.minCount = in.readInt();
+		c.seed = in.readLong();
+		c.seeding = in.readInt();
+		c.iterations = in.readInt();
+		c.reseedRounds = in.readInt();
+		c.reseeded = in.readInt();
+		c.testAfterCenter = in.readBoolean();
+		c.histogramMax = in.readFloat();
+		if (c.n <= 0 || c.k <= 0 || c.dimension <= 0
+				|| (long) c.k * c.dimension > Integer.MAX_VALUE)
+			throw new IOException("corrupt header");
+		// nothing is allocated for a checkpoint of another run
+		if (!c.matches(expected))
+			throw new IOException("written for other input or parameters");
+
+		c.centroids = new float[c.k * c.dimension];
+		for (int i = 0; i < c.centroids.length; i++)
+			c.centroids[i] = in.readFloat();
+		c.verificationValues = new float[c.k];
+		for (int i = 0; i < c.k; i++)
+			c.verificationValues[i] = in.readFloat();
+		c.reseededCentroids = new boolean[c.k];
+		for (int i = 0; i < c.k; i++)
+			c.reseededCentroids[i] = in.readBoolean();
+
+		int randomSize = in.readInt();
+		if (randomSize <= 0 || randomSize > MAX_RANDOM_SIZE)
+			throw new IOException("corrupt random state");
+		byte[] rnd = new byte[randomSize];
+		in.readFully(rnd);
+		try {
+			ObjectInputStream o = new ObjectInputStream(
+					new ByteArrayInputStream(rnd));
+			o.setObjectInputFilter(RANDOM_ONLY);
+			c.rnd = (Random) o.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("corrupt random state");
+		} catch (ClassCastException e) {
+			throw new IOException("corrupt random state");
+		}
+		return c;
+	}
+
+	/**
+	 * Replaces the checkpoint file, the old one stays valid until the new
+	 * one is complete
+	 */
+	void write(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("can not create " + parent);
+
+		ByteArrayOutputStream random = new ByteArrayOutputStream();
+		ObjectOutputStream o = new ObjectOutputStream(random);
+		o.writeObject(rnd);
+		o.close();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fingerprint);
+			out.writeInt(n);
+			out.writeInt(k);
+			out.writeInt(dimension);
+			out.writeInt(minCount);
+			out.writeLong(seed);
+			out.writeInt(seeding);
+			out.writeInt(iterations);
+			out.writeInt(reseedRounds);
+			out.writeInt(reseeded);
+			out.writeBoolean(testAfterCenter);
+			out.writeFloat(histogramMax);
+			for (float v : centroids)
+				out.writeFloat(v);
+			for (float v : verificationValues)
+				out.writeFloat(v);
+			for (boolean r : reseededCentroids)
+				out.writeBoolean(r);
+			out.writeInt(random.size());
+			random.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("can not replace " + file);
+		}
+	}
+
+	/**
+	 * @return a hash of all descriptors of m
+	 */
+	static long fingerprint(DescriptorMatrix m) {
+		return fingerprint(m.descriptors, 0, m.size() * m.dimension(), m
+				.size());
+	}
+
+	/**
+	 * @return a hash of FINGERPRINT_ROWS evenly spread rows of file, reading
+	 *         all of them would take as long as an iteration
+	 */
+	static long fingerprint(DescriptorFile file) {
+		int n = file.size();
+		int rows = Math.min(n, FINGERPRINT_ROWS);
+		float[] row = new float[file.dimension()];
+		long h = n;
+		for (int r = 0; r < rows; r++) {
+			file.read((int) ((long) r * n / rows), 1, row);
+			h = fingerprint(row, 0, row.length, h);
+		}
+		return h;
+	}
+
+	private static long fingerprint(float[] values, int from, int to, long h) {
+		for (int i = from; i < to; i++)
+			h = (h ^ Float.floatToIntBits(values[i])) * 0x100000001B3L;
+		return h;
+	}
+}
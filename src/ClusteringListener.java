@@ -0,0 +1,48 @@
+/**
+ * Gets informed about the progress of a k-means clustering after each
+ * iteration, e.g. to watch the convergence and the reseeding while tuning K
+ * and MIN_CLASS_SIZE
+ */
+public interface ClusteringListener {
+
+	/**
+	 * The statistics of one iteration
+	 */
+	public static class Iteration {
+		// number of the iteration, starting at 1
+		public int number;
+
+		// wall time of the iteration
+		public long nanos;
+
+		// sum of the squared distances of the points of this iteration to
+		// their nearest centroid
+		public double inertia;
+
+		// points which got another nearest centroid, -1 if not known
+		public int reassigned;
+
+		// under populated centroids moved to a new random position
+		public int reseeded;
+
+		// points assigned in this iteration
+		public int points;
+
+		public double pointsPerSecond() {
+			return nanos > 0 ? points * 1e9 / nanos : 0;
+		}
+
+		public String toString() {
+			return String.format(
+					"iteration %d: %dms, inertia %.6g, %s reassigned, %d reseeded, %.0f points/s",
+					number, nanos / 1000000, inertia,
+					reassigned < 0 ? "?" : String.valueOf(reassigned),
+					reseeded, pointsPerSecond());
+		}
+	}
+
+	/**
+	 * an iteration has been finished
+	 */
+	void iterationDone(Iteration iteration);
+}
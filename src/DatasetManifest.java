@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers size, modification time and content hash of every image of a
+ * data set (one image folder).
+ *
+ * An image whose size and modification time did not change since the last
+ * run keeps its content hash, so its cached features can be found without
+ * reading the file. Only added or changed images have to be read and
+ * hashed, a refresh costs time proportional to the changes.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int MAGIC, int VERSION, int entryCount
+ * entry: UTF name, long size, long lastModified, UTF contentHash
+ * </pre>
+ */
+public class DatasetManifest {
+
+	private static final int MAGIC = 0x4d414e49; // "MANI"
+	private static final int VERSION = 1;
+
+	private static class Entry {
+		final long size;
+		final long lastModified;
+		final String contentHash;
+
+		Entry(long size, long lastModified, String contentHash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.contentHash = contentHash;
+		}
+	}
+
+	private final File file;
+
+	// the state of the last run
+	private final Map<String, Entry> previous = new HashMap<String, Entry>();
+
+	// the state of this run, sorted by file name
+	private final Map<String, Entry> current = new TreeMap<String, Entry>();
+
+	// images which had to be hashed in this run
+	private int changed;
+
+	private DatasetManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens the manifest file, a missing or unreadable file gives an empty
+	 * manifest
+	 */
+	public static DatasetManifest open(File file) {
+		DatasetManifest manifest = new DatasetManifest(file);
+		if (file.exists()) {
+			try {
+				manifest.load();
+			} catch (IOException e) {
+				System.err.println("ignoring manifest " + file + ": "
+						+ e.getMessage());
+				manifest.previous.clear();
+			}
+		}
+		return manifest;
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("unknown file format");
+			int entryCount = in.readInt();
+			for (int e = 0; e < entryCount; e++) {
+				String name = in.readUTF();
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				String contentHash = in.readUTF();
+				previous.put(name, new Entry(size, lastModified, contentHash));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the content hash of the last run if size and modification time
+	 *         of the image are unchanged, otherwise null
+	 */
+	public String unchangedHash(File image) {
+		Entry e = previous.get(image.getName());
+		if (e == null || e.size != image.length()
+				|| e.lastModified != image.lastModified())
+			return null;
+		return e.contentHash;
+	}
+
+	/**
+	 * Records the state of an image for this run
+	 *
+	 * @param hashed
+	 *            true if the file had to be read and hashed
+	 */
+	public synchronized void put(File image, long size, long lastModified,
+			String contentHash, boolean hashed) {
+		current.put(image.getName(), new Entry(size, lastModified,
+				contentHash));
+		if (hashed)
+			changed++;
+	}
+
+	/**
+	 * @return a one line summary of the differences to the last run
+	 */
+	public synchronized String summary() {
+		int removed = 0;
+		for (String name : previous.keySet())
+			if (!current.containsKey(name))
+				removed++;
+		return (current.size() - changed) + " unchanged, " + changed
+				+ " added or changed, " + removed + " removed";
+	}
+
+	/**
+	 * Replaces the manifest file by the state of this run, images which have
+	 * not been seen in this run are dropped. The old file stays valid until
+	 * the new one is complete.
+	 */
+	public synchronized void write() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("can not create " + parent);
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(current.size());
+			for (Map.Entry<String, Entry> e : current.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().lastModified);
+				out.writeUTF(e.getValue().contentHash);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("can not replace " + file);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary file of SIFT descriptors, one row after the other, which is
+ * read by memory mapping. It lets OutOfCoreKMeans cluster more descriptors
+ * than fit into the heap: rows are copied out in blocks on demand, the
+ * operating system pages the file in and out.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int MAGIC, int VERSION, int rowCount, int dimension
+ * rowCount * float[dimension] descriptor
+ * </pre>
+ */
+public class DescriptorFile {
+
+	private static final int MAGIC = 0x44455343; // "DESC"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+
+	// the file is mapped in regions of at most this size
+	private static final long REGION_SIZE = 1L << 30;
+
+	private final File file;
+	private int size;
+	private int dimension;
+
+	// region r holds the rows r * rowsPerRegion ...
+	private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+	private int rowsPerRegion;
+
+	/**
+	 * Appends descriptors to a new file, the row count in the header is
+	 * written by close. The rows go to a temporary file which replaces the
+	 * descriptor file on close, so a run that fails while reading the
+	 * images leaves the previous file as it was.
+	 */
+	public static class Writer {
+		private final File file;
+		private final File tmp;
+		private final int dimension;
+		private final DataOutputStream out;
+		private int size;
+
+		private Writer(File file, int dimension) throws IOException {
+			this.file = file;
+			this.dimension = dimension;
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.exists() && !parent.mkdirs())
+				throw new IOException("can not create " + parent);
+			tmp = new File(file.getPath() + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(0);
+			out.writeInt(dimension);
+		}
+
+		/**
+		 * Appends the descriptors of all rows of m
+		 */
+		public void add(DescriptorMatrix m) throws IOException {
+			if (m.size() > 0 && m.dimension() != dimension)
+				throw new IllegalArgumentException("descriptor length "
+						+ m.dimension() + " != " + dimension);
+			add(m.descriptors, 0, m.size());
+		}
+
+		/**
+		 * Appends count rows stored one after the other in descriptors
+		 * starting at offset
+		 */
+		public void add(float[] descriptors, int offset, int count)
+				throws IOException {
+			for (int i = offset; i < offset + count * dimension; i++)
+				out.writeFloat(descriptors[i]);
+			size += count;
+		}
+
+		/**
+		 * Replaces the descriptor file by the written rows
+		 */
+		public void close() throws IOException {
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.seek(8);
+				raf.writeInt(size);
+			} finally {
+				raf.close();
+			}
+
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("can not replace " + file);
+			}
+		}
+
+		/**
+		 * Drops the written rows, the descriptor file stays as it is
+		 */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			tmp.delete();
+		}
+	}
+
+	private DescriptorFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Creates a new descriptor file, an existing file is replaced when the
+	 * Writer is closed
+	 */
+	public static Writer create(File file, int dimension) throws IOException {
+		return new Writer(file, dimension);
+	}
+
+	/**
+	 * Maps an existing descriptor file
+	 */
+	public static DescriptorFile open(File file) throws IOException {
+		DescriptorFile d = new DescriptorFile(file);
+		d.load();
+		return d;
+	}
+
+	private void load() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE)
+				throw new IOException("truncated header");
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+				throw new IOException("unknown file format");
+			size = header.getInt(8);
+			dimension = header.getInt(12);
+			long rowSize = 4L * dimension;
+			if (size < 0 || dimension <= 0
+					|| HEADER_SIZE + size * rowSize > fileSize)
+				throw new IOException("truncated file " + file);
+
+			rowsPerRegion = (int) Math.min(Integer.MAX_VALUE, REGION_SIZE
+					/ rowSize);
+			for (long first = 0; first < size; first += rowsPerRegion) {
+				long rows = Math.min(rowsPerRegion, size - first);
+				regions.add(channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_SIZE + first * rowSize, rows * rowSize));
+			}
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int dimension() {
+		return dimension;
+	}
+
+	/**
+	 * Copies the rows first ... first + count - 1 into dst, one after the
+	 * other. Can be called by several threads at once.
+	 */
+	public void read(int first, int count, float[] dst) {
+		int pos = 0;
+		while (count > 0) {
+			int region = first / rowsPerRegion;
+			int row = first % rowsPerRegion;
+			int rows = Math.min(count, rowsPerRegion - row);
+			ByteBuffer buffer = regions.get(region).duplicate();
+			buffer.position(row * 4 * dimension);
+			buffer.asFloatBuffer().get(dst, pos, rows * dimension);
+			pos += rows * dimension;
+			first += rows;
+			count -= rows;
+		}
+	}
+}
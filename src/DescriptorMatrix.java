@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * A list of SIFT features packed into flat arrays: all descriptors are
+ * stored row by row in one float array, the keypoint geometry in parallel
+ * arrays. This saves the object overhead of one Feature and two arrays per
+ * keypoint and keeps the descriptors in memory order for the distance loops.
+ */
+public class DescriptorMatrix {
+
+	// length of each descriptor
+	private final int dimension;
+
+	// number of features
+	private int size;
+
+	// descriptor of row i starts at i * dimension
+	float[] descriptors;
+
+	// keypoint geometry of each row
+	float[] x;
+	float[] y;
+	float[] scale;
+	float[] orientation;
+
+	public DescriptorMatrix(int dimension, int capacity) {
+		this.dimension = dimension;
+		capacity = Math.max(capacity, 1);
+		descriptors = new float[capacity * dimension];
+		x = new float[capacity];
+		y = new float[capacity];
+		scale = new float[capacity];
+		orientation = new float[capacity];
+	}
+
+	/**
+	 * Packs a list of features, all descriptors must have the same length
+	 */
+	public static DescriptorMatrix fromFeatures(List<Feature> features) {
+		int dimension = features.isEmpty() ? 0
+				: features.get(0).descriptor.length;
+		DescriptorMatrix m = new DescriptorMatrix(dimension, features.size());
+		for (Feature f : features)
+			m.add(f);
+		return m;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int dimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the index of the first descriptor element of row i in
+	 *         descriptors
+	 */
+	public int offset(int i) {
+		return i * dimension;
+	}
+
+	public void add(Feature f) {
+		if (f.descriptor.length != dimension)
+			throw new IllegalArgumentException("descriptor length "
+					+ f.descriptor.length + " != " + dimension);
+		add(f.location[0], f.location[1], f.scale, f.orientation,
+				f.descriptor, 0);
+	}
+
+	public void add(float x, float y, float scale, float orientation,
+			float[] descriptor, int offset) {
+		ensureCapacity(size + 1);
+		this.x[size] = x;
+		this.y[size] = y;
+		this.scale[size] = scale;
+		this.orientation[size] = orientation;
+		System.arraycopy(descriptor, offset, descriptors, size * dimension,
+				dimension);
+		size++;
+	}
+
+	/**
+	 * Appends all rows of m
+	 */
+	public void addAll(DescriptorMatrix m) {
+		if (m.size == 0)
+			return;
+		if (m.dimension != dimension)
+			throw new IllegalArgumentException("descriptor length "
+					+ m.dimension + " != " + dimension);
+		ensureCapacity(size + m.size);
+		System.arraycopy(m.x, 0, x, size, m.size);
+		System.arraycopy(m.y, 0, y, size, m.size);
+		System.arraycopy(m.scale, 0, scale, size, m.size);
+		System.arraycopy(m.orientation, 0, orientation, size, m.size);
+		System.arraycopy(m.descriptors, 0, descriptors, size * dimension,
+				m.size * dimension);
+		size += m.size;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= x.length)
+			return;
+		capacity = Math.max(capacity, x.length * 2);
+		descriptors = Arrays.copyOf(descriptors, capacity * dimension);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		scale = Arrays.copyOf(scale, capacity);
+		orientation = Arrays.copyOf(orientation, capacity);
+	}
+
+	/**
+	 * @return row i as a new Feature
+	 */
+	public Feature getFeature(int i) {
+		return new Feature(scale[i], orientation[i], new float[] { x[i], y[i] },
+				Arrays.copyOfRange(descriptors, i * dimension, (i + 1)
+						* dimension));
+	}
+
+	/**
+	 * Euclidean distance between the descriptor of row i and the vector
+	 * stored in v at offset, computed like Feature.descriptorDistance
+	 */
+	public float distance(int i, float[] v, int offset) {
+		float d = 0;
+		int p = i * dimension;
+		for (int k = 0; k < dimension; k++) {
+			float a = descriptors[p + k] - v[offset + k];
+			d += a * a;
+		}
+		return (float) Math.sqrt(d);
+	}
+}
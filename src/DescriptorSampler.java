@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Chooses the descriptors of the training images the visual words are
+ * learned from. Descriptor rich images dominate the clustering time but add
+ * little to the centroids, so the descriptors can be capped per image and
+ * bounded in total.
+ *
+ * The per image cap keeps a random subset of each image. The total bound is
+ * a reservoir sample (Vitter's algorithm R) over the remaining descriptors
+ * in image order, one reservoir per class of the images if stratified. The
+ * classes share the total bound equally, a class with less descriptors than
+ * its share leaves the rest to the others. The sample keeps the image
+ * order, for a fixed seed it is always the same.
+ */
+public class DescriptorSampler {
+
+	private DescriptorSampler() {
+	}
+
+	/**
+	 * @param images
+	 *            the training images
+	 * @param perImage
+	 *            maximum descriptors of each image, 0 = all
+	 * @param total
+	 *            maximum descriptors of the sample, 0 = all
+	 * @param stratified
+	 *            bound each class of IgsImage.className to its share of total
+	 * @return the sampled descriptors of all images
+	 */
+	public static DescriptorMatrix sample(List<IgsImage> images, int perImage,
+			int total, boolean stratified, long seed) {
+		Random rnd = new Random(seed);
+
+		// the rows left by the per image cap
+		int[][] rows = new int[images.size()][];
+		for (int m = 0; m < images.size(); m++) {
+			int size = images.get(m).features.size();
+			int[] all = new int[size];
+			for (int i = 0; i < size; i++)
+				all[i] = i;
+			if (perImage > 0 && size > perImage) {
+				// partial Fisher-Yates shuffle
+				for (int i = 0; i < perImage; i++) {
+					int j = i + rnd.nextInt(size - i);
+					int t = all[i];
+					all[i] = all[j];
+					all[j] = t;
+				}
+				all = Arrays.copyOf(all, perImage);
+				Arrays.sort(all);
+			}
+			rows[m] = all;
+		}
+
+		// the stratum of each image and the descriptors of each stratum
+		Map<String, Integer> strata = new HashMap<String, Integer>();
+		int[] stratum = new int[images.size()];
+		List<Integer> available = new ArrayList<Integer>();
+		for (int m = 0; m < images.size(); m++) {
+			String key = stratified ? images.get(m).className : "";
+			Integer s = strata.get(key);
+			if (s == null) {
+				s = strata.size();
+				strata.put(key, s);
+				available.add(0);
+			}
+			stratum[m] = s;
+			available.set(s, available.get(s) + rows[m].length);
+		}
+		int[] capacity = capacities(available, total);
+
+		// one reservoir per stratum, entries are image << 32 | row
+		long[][] reservoirs = new long[capacity.length][];
+		int[] seen = new int[capacity.length];
+		for (int s = 0; s < capacity.length; s++)
+			reservoirs[s] = new long[capacity[s]];
+		for (int m = 0; m < images.size(); m++) {
+			int s = stratum[m];
+			long[] reservoir = reservoirs[s];
+			for (int row : rows[m]) {
+				long entry = (long) m << 32 | row;
+				if (seen[s] < reservoir.length) {
+					reservoir[seen[s]] = entry;
+				} else {
+					int j = rnd.nextInt(seen[s] + 1);
+					if (j < reservoir.length)
+						reservoir[j] = entry;
+				}
+				seen[s]++;
+			}
+		}
+
+		int size = 0;
+		for (long[] reservoir : reservoirs)
+			size += reservoir.length;
+		long[] entries = new long[size];
+		int next = 0;
+		for (long[] reservoir : reservoirs) {
+			System.arraycopy(reservoir, 0, entries, next, reservoir.length);
+			next += reservoir.length;
+		}
+		Arrays.sort(entries);
+
+		int dim = CbirWithSift.descriptorLength();
+		DescriptorMatrix sample = new DescriptorMatrix(dim, size);
+		for (long entry : entries) {
+			DescriptorMatrix f = images.get((int) (entry >>> 32)).features;
+			int i = (int) entry;
+			sample.add(f.x[i], f.y[i], f.scale[i], f.orientation[i],
+					f.descriptors, f.offset(i));
+		}
+		return sample;
+	}
+
+	/**
+	 * Shares total among the strata: the smallest ones get all of their
+	 * descriptors as long as that is below an equal share of the rest
+	 */
+	private static int[] capacities(List<Integer> available, int total) {
+		int strata = available.size();
+		int[] capacity = new int[strata];
+		if (total <= 0) {
+			for (int s = 0; s < strata; s++)
+				capacity[s] = available.get(s);
+			return capacity;
+		}
+
+		Integer[] order = new Integer[strata];
+		for (int s = 0; s < strata; s++)
+			order[s] = s;
+		final List<Integer> a = available;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer x, Integer y) {
+				return a.get(x).compareTo(a.get(y));
+			}
+		});
+		int remaining = total;
+		for (int i = 0; i < strata; i++) {
+			int s = order[i];
+			int share = (remaining + strata - i - 1) / (strata - i);
+			capacity[s] = Math.min(available.get(s), share);
+			remaining -= capacity[s];
+		}
+		return capacity;
+	}
+}
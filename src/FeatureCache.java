@@ -0,0 +1,325 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent store for the SIFT features of one data set (one image
+ * folder).
+ *
+ * Each entry is keyed by a SHA-1 hash over the hash of the image file
+ * content and the SIFT parameters, so a changed image or a changed
+ * parameter simply misses the cache. The file is opened by memory mapping,
+ * features are only decoded for the entries that are actually requested.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int   MAGIC, int VERSION, int entryCount
+ * entry: byte[20] key, int featureCount, int descriptorLength,
+ *        featureCount * (float x, float y, float scale, float orientation,
+ *                        float[descriptorLength] descriptor)
+ * </pre>
+ */
+public class FeatureCache {
+
+	private static final int MAGIC = 0x53494654; // "SIFT"
+	// changed with the key or the entry layout, older files are rejected
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 12;
+	private static final int KEY_SIZE = 20;
+	private static final int ENTRY_HEADER_SIZE = KEY_SIZE + 8;
+
+	// the file is mapped in regions of at most this size
+	private static final long REGION_SIZE = 1L << 30;
+
+	private final File file;
+
+	private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+
+	// key -> { region, offset of the first feature, featureCount, descriptorLength }
+	private final Map<String, int[]> index = new HashMap<String, int[]>();
+
+	private FeatureCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens the cache file, a missing or unreadable file gives an empty cache
+	 */
+	public static FeatureCache open(File file) {
+		FeatureCache cache = new FeatureCache(file);
+		if (file.exists()) {
+			try {
+				cache.load();
+			} catch (IOException e) {
+				System.err.println("ignoring feature cache " + file + ": "
+						+ e.getMessage());
+				cache.regions.clear();
+				cache.index.clear();
+			}
+		}
+		return cache;
+	}
+
+	private void load() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < HEADER_SIZE)
+				throw new IOException("truncated header");
+
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, Math.min(size, REGION_SIZE));
+			long regionStart = 0;
+			regions.add(region);
+
+			if (region.getInt(0) != MAGIC || region.getInt(4) != VERSION)
+				throw new IOException("unknown file format");
+			int entryCount = region.getInt(8);
+
+			long pos = HEADER_SIZE;
+			for (int e = 0; e < entryCount; e++) {
+				if (pos + ENTRY_HEADER_SIZE > size)
+					throw new IOException("truncated entry " + e);
+				if (pos + ENTRY_HEADER_SIZE - regionStart > region.capacity()) {
+					regionStart = pos;
+					region = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+							Math.min(size - pos, REGION_SIZE));
+					regions.add(region);
+				}
+
+				int off = (int) (pos - regionStart);
+				byte[] key = new byte[KEY_SIZE];
+				for (int i = 0; i < KEY_SIZE; i++)
+					key[i] = region.get(off + i);
+				int featureCount = region.getInt(off + KEY_SIZE);
+				int descriptorLength = region.getInt(off + KEY_SIZE + 4);
+				long entrySize = ENTRY_HEADER_SIZE + (long) featureCount
+						* featureSize(descriptorLength);
+				if (featureCount < 0 || descriptorLength < 0
+						|| entrySize > REGION_SIZE || pos + entrySize > size)
+					throw new IOException("corrupt entry " + e);
+
+				if (pos + entrySize - regionStart > region.capacity()) {
+					regionStart = pos;
+					region = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+							Math.min(size - pos, REGION_SIZE));
+					regions.add(region);
+					off = 0;
+				}
+
+				index.put(toHex(key), new int[] { regions.size() - 1,
+						off + ENTRY_HEADER_SIZE, featureCount, descriptorLength });
+				pos += entrySize;
+			}
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	private static int featureSize(int descriptorLength) {
+		return 4 * (4 + descriptorLength);
+	}
+
+	/**
+	 * @return the number of images in the cache
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return true if the features for the key are in the cache
+	 */
+	public boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * @return the cached features for the key or null if the key is unknown
+	 */
+	public DescriptorMatrix get(String key) {
+		int[] entry = index.get(key);
+		if (entry == null)
+			return null;
+
+		ByteBuffer buffer = regions.get(entry[0]).duplicate();
+		buffer.position(entry[1]);
+		FloatBuffer floats = buffer.asFloatBuffer();
+
+		DescriptorMatrix features = new DescriptorMatrix(entry[3], entry[2]);
+		float[] descriptor = new float[entry[3]];
+		for (int i = 0; i < entry[2]; i++) {
+			float x = floats.get();
+			float y = floats.get();
+			float scale = floats.get();
+			float orientation = floats.get();
+			floats.get(descriptor);
+			features.add(x, y, scale, orientation, descriptor, 0);
+		}
+		return features;
+	}
+
+	/**
+	 * Replaces the cache file by the features of the given images. Images
+	 * which are no longer part of the data set are dropped this way.
+	 */
+	public void write(List<IgsImage> images) throws IOException {
+		Writer writer = writer();
+		try {
+			for (IgsImage image : images)
+				writer.add(image);
+		} catch (IOException e) {
+			writer.abort();
+			throw e;
+		}
+		writer.close();
+	}
+
+	/**
+	 * @return a Writer which replaces the cache file image by image
+	 */
+	public Writer writer() throws IOException {
+		return new Writer(file);
+	}
+
+	/**
+	 * Writes a new cache file image by image, so the features of an image
+	 * can be released as soon as they are written. The entries go to a
+	 * temporary file which replaces the cache file on close.
+	 */
+	public static class Writer {
+		private final File file;
+		private final File tmp;
+		private final DataOutputStream out;
+		private int entries;
+
+		private Writer(File file) throws IOException {
+			this.file = file;
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.exists() && !parent.mkdirs())
+				throw new IOException("can not create " + parent);
+			tmp = new File(file.getPath() + ".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// the entry count is written by close
+			out.writeInt(0);
+		}
+
+		/**
+		 * Appends the features of an image
+		 */
+		public void add(IgsImage image) throws IOException {
+			DescriptorMatrix m = image.features;
+			out.write(fromHex(image.featureKey));
+			out.writeInt(m.size());
+			out.writeInt(m.dimension());
+			for (int f = 0; f < m.size(); f++) {
+				out.writeFloat(m.x[f]);
+				out.writeFloat(m.y[f]);
+				out.writeFloat(m.scale[f]);
+				out.writeFloat(m.orientation[f]);
+				for (int i = m.offset(f); i < m.offset(f + 1); i++)
+					out.writeFloat(m.descriptors[i]);
+			}
+			entries++;
+		}
+
+		/**
+		 * Replaces the cache file by the written entries
+		 *
+		 * @return the new cache file, opened
+		 */
+		public FeatureCache close() throws IOException {
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.seek(8);
+				raf.writeInt(entries);
+			} finally {
+				raf.close();
+			}
+
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("can not replace " + file);
+			}
+			return open(file);
+		}
+
+		/**
+		 * Drops the written entries, the cache file stays as it is
+		 */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * @return the SHA-1 hash of an image file content
+	 */
+	public static String contentHash(byte[] content) {
+		return toHex(sha1().digest(content));
+	}
+
+	/**
+	 * Computes the cache key of an image
+	 *
+	 * @param contentHash
+	 *            the hash of the image file, see contentHash
+	 * @param parameters
+	 *            all parameters that have an influence on the features
+	 */
+	public static String key(String contentHash, String parameters) {
+		MessageDigest sha = sha1();
+		sha.update(contentHash.getBytes(StandardCharsets.UTF_8));
+		sha.update(parameters.getBytes(StandardCharsets.UTF_8));
+		return toHex(sha.digest());
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+}
@@ -1,7 +1,9 @@
 import java.awt.image.BufferedImage;
-import java.util.Vector;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
 
-import mpi.cbg.fly.Feature;
+import javax.imageio.ImageIO;
 
 
 public class IgsImage {
@@ -12,11 +14,82 @@ public class IgsImage {
 	//the estimated image class 
 	String classifiedName;
 	
-	//the image bitmap
+	//the image file
+	File file;
+	
+	//the image bitmap, released after the SIFT extraction unless
+	//CbirWithSift.keepImages is set, use getImage() to access it
 	BufferedImage image;
 	
-	//all SIFT feature found in the image
-	Vector<Feature> features;
+	//a bitmap reloaded from file, may be dropped by the garbage collector
+	private SoftReference<BufferedImage> reloaded;
+	
+	//all SIFT feature found in the image, null if they have been released
+	//to the feature cache, use getFeatures() to access them
+	DescriptorMatrix features;
+	
+	//the cache holding the released features, which are reloaded from it
+	private FeatureCache featureCache;
+	private SoftReference<DescriptorMatrix> reloadedFeatures;
+	
+	//content hash of the image file and the SIFT parameters, see FeatureCache
+	String featureKey;
+	
+	//the visual word of each feature, -1 if it is rejected, valid for the
+	//vocabulary version wordsVersion, see CbirWithSift.visualWords
+	private int[] words;
+	private int wordsVersion;
+	
+	//the image bitmap, reloaded from file if it has been released
+	synchronized BufferedImage getImage() {
+		if (image != null)
+			return image;
+		BufferedImage img = reloaded == null ? null : reloaded.get();
+		if (img == null && file != null) {
+			try {
+				img = ImageIO.read(file);
+			} catch (IOException e) {
+				System.err.println("can not reload " + file + ": " + e.getMessage());
+				return null;
+			}
+			reloaded = new SoftReference<BufferedImage>(img);
+		}
+		return img;
+	}
+	
+	//the features, reloaded from the feature cache if they have been
+	//released, null if they are not available
+	synchronized DescriptorMatrix getFeatures() {
+		if (features != null)
+			return features;
+		DescriptorMatrix m = reloadedFeatures == null ? null : reloadedFeatures.get();
+		if (m == null && featureCache != null) {
+			m = featureCache.get(featureKey);
+			reloadedFeatures = new SoftReference<DescriptorMatrix>(m);
+		}
+		return m;
+	}
+	
+	//drops the features from the heap, getFeatures() reloads them from the
+	//cache once it is set by setFeatureCache
+	synchronized void releaseFeatures() {
+		features = null;
+	}
+	
+	synchronized void setFeatureCache(FeatureCache cache) {
+		featureCache = cache;
+	}
+	
+	//the visual words of the features for a vocabulary version, null if
+	//they have not been assigned for it
+	synchronized int[] getVisualWords(int version) {
+		return words != null && wordsVersion == version ? words : null;
+	}
+	
+	synchronized void setVisualWords(int[] words, int version) {
+		this.words = words;
+		this.wordsVersion = version;
+	}
 	
 	//is className = classifiedName?
 	boolean isClassificationCorect() {
@@ -0,0 +1,297 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the images with the most similar VisualWordHistogram in a catalogue
+ * of images (Sivic, Zisserman: Video Google, 2003).
+ *
+ * Each visual word has a posting list of the images containing it and how
+ * often (the term frequency). A query only walks the posting lists of its
+ * own words and adds up the scores of the images on them, so its time grows
+ * with the posting entries touched and not with the size of the catalogue.
+ * Frequent words carry little information and are weighted down by their
+ * inverse document frequency, either as the cosine of the tf-idf vectors or
+ * by Okapi BM25, which also saturates the term frequency and normalizes by
+ * the number of features of an image.
+ *
+ * Images are added one by one, search can be called by several threads at
+ * once, but not while images are added.
+ */
+public class InvertedIndex {
+
+	public enum Scoring {
+		TF_IDF, BM25
+	}
+
+	// BM25 term frequency saturation and length normalization
+	private static final float K1 = 1.2f;
+	private static final float B = 0.75f;
+
+	/**
+	 * An image found by search
+	 */
+	public static class Hit {
+		// the id returned by add
+		public final int image;
+
+		// the similarity to the query, larger is more similar
+		public final float score;
+
+		Hit(int image, float score) {
+			this.image = image;
+			this.score = score;
+		}
+
+		public String toString() {
+			return image + ":" + score;
+		}
+	}
+
+	// posting list of word w: the images postingImages[w][0 .. postings[w]-1]
+	// in ascending order and their term frequencies postingCounts[w][..]
+	private final int[][] postingImages;
+	private final int[][] postingCounts;
+	private final int[] postings;
+
+	// the features of each image with a visual word
+	private int[] imageLengths = new int[64];
+	private int images;
+	private long totalLength;
+
+	// length of the tf-idf vector of each image, computed by the first
+	// search after images have been added, null = not yet
+	private float[] tfIdfNorms;
+
+	// the per thread score accumulator
+	private final ThreadLocal<Accumulator> accumulator = new ThreadLocal<Accumulator>();
+
+	private static class Accumulator {
+		float[] scores;
+		// the images with a score, the others stay 0
+		int[] touched;
+		int size;
+	}
+
+	/**
+	 * @param words
+	 *            the number of visual words
+	 */
+	public InvertedIndex(int words) {
+		postingImages = new int[words][];
+		postingCounts = new int[words][];
+		postings = new int[words];
+	}
+
+	/**
+	 * Adds an image to the catalogue
+	 *
+	 * @param histogram
+	 *            the VisualWordHistogram of the image
+	 * @return the id of the image, the images are numbered from 0 in the
+	 *         order they were added
+	 */
+	public synchronized int add(int[] histogram) {
+		if (histogram.length != postings.length)
+			throw new IllegalArgumentException("histogram of "
+					+ histogram.length + " words, the index has "
+					+ postings.length);
+		int image = images++;
+		int length = 0;
+		for (int w = 0; w < histogram.length; w++) {
+			int count = histogram[w];
+			if (count <= 0)
+				continue;
+			int n = postings[w];
+			if (postingImages[w] == null) {
+				postingImages[w] = new int[4];
+				postingCounts[w] = new int[4];
+			} else if (n == postingImages[w].length) {
+				postingImages[w] = Arrays.copyOf(postingImages[w], n * 2);
+				postingCounts[w] = Arrays.copyOf(postingCounts[w], n * 2);
+			}
+			postingImages[w][n] = image;
+			postingCounts[w][n] = count;
+			postings[w] = n + 1;
+			length += count;
+		}
+		if (image == imageLengths.length)
+			imageLengths = Arrays.copyOf(imageLengths, image * 2);
+		imageLengths[image] = length;
+		totalLength += length;
+		tfIdfNorms = null;
+		return image;
+	}
+
+	/**
+	 * Searches the images most similar to a VisualWordHistogram
+	 *
+	 * @param results
+	 *            maximum number of images returned
+	 * @return the images sharing at least one visual word with the query,
+	 *         the most similar first
+	 */
+	public List<Hit> search(int[] histogram, int results, Scoring scoring) {
+		float[] norms = scoring == Scoring.TF_IDF ? tfIdfNorms() : null;
+		Accumulator a = accumulator.get();
+		if (a == null || a.scores.length < images) {
+			a = new Accumulator();
+			a.scores = new float[images];
+			a.touched = new int[Math.max(16, images / 16)];
+			accumulator.set(a);
+		}
+		a.size = 0;
+
+		// BM25 tf saturation: tf + K1 * (1 - B + B * length / averageLength)
+		float averageLength = images == 0 ? 1 : (float) totalLength / images;
+		float saturation = K1 * (1 - B);
+		float lengthWeight = K1 * B / Math.max(averageLength, 1e-6f);
+		for (int w = 0; w < histogram.length && w < postings.length; w++) {
+			int queryCount = histogram[w];
+			int n = postings[w];
+			if (queryCount <= 0 || n == 0)
+				continue;
+			float idf = idf(w, scoring);
+			if (idf <= 0)
+				// a tf-idf word in all images, adds nothing
+				continue;
+			float weight = scoring == Scoring.BM25 ? queryCount * idf
+					* (K1 + 1) : queryCount * idf * idf;
+			int[] ids = postingImages[w];
+			int[] counts = postingCounts[w];
+			for (int p = 0; p < n; p++) {
+				int image = ids[p];
+				float tf = counts[p];
+				float score;
+				if (scoring == Scoring.BM25)
+					score = weight * tf
+							/ (tf + saturation + lengthWeight * imageLengths[image]);
+				else
+					score = weight * tf;
+				if (a.scores[image] == 0) {
+					if (a.size == a.touched.length)
+						a.touched = Arrays.copyOf(a.touched, a.size * 2);
+					a.touched[a.size++] = image;
+				}
+				a.scores[image] += score;
+			}
+		}
+
+		// the best results in a min-heap on the score, then sorted
+		int capacity = Math.min(results, a.size);
+		int[] heap = new int[capacity];
+		float[] heapScores = new float[capacity];
+		int heapSize = 0;
+		for (int t = 0; t < a.size; t++) {
+			int image = a.touched[t];
+			float score = a.scores[image];
+			a.scores[image] = 0;
+			if (norms != null)
+				score /= norms[image];
+			if (heapSize < capacity) {
+				int i = heapSize++;
+				while (i > 0 && heapScores[(i - 1) / 2] > score) {
+					heap[i] = heap[(i - 1) / 2];
+					heapScores[i] = heapScores[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				heap[i] = image;
+				heapScores[i] = score;
+			} else if (capacity > 0 && score > heapScores[0]) {
+				int i = 0;
+				while (2 * i + 1 < heapSize) {
+					int child = 2 * i + 1;
+					if (child + 1 < heapSize
+							&& heapScores[child + 1] < heapScores[child])
+						child++;
+					if (score <= heapScores[child])
+						break;
+					heap[i] = heap[child];
+					heapScores[i] = heapScores[child];
+					i = child;
+				}
+				heap[i] = image;
+				heapScores[i] = score;
+			}
+		}
+
+		List<Hit> hits = new ArrayList<Hit>(heapSize);
+		for (int i = 0; i < heapSize; i++)
+			hits.add(new Hit(heap[i], heapScores[i]));
+		Collections.sort(hits, new Comparator<Hit>() {
+			public int compare(Hit x, Hit y) {
+				int c = Float.compare(y.score, x.score);
+				return c != 0 ? c : x.image - y.image;
+			}
+		});
+		return hits;
+	}
+
+	/**
+	 * @return the inverse document frequency of word w
+	 */
+	private float idf(int w, Scoring scoring) {
+		int df = postings[w];
+		if (scoring == Scoring.BM25)
+			return (float) Math.log(1 + (images - df + 0.5) / (df + 0.5));
+		return (float) Math.log((double) images / df);
+	}
+
+	/**
+	 * @return the length of the tf-idf vector of each image, at least a
+	 *         small positive value
+	 */
+	private synchronized float[] tfIdfNorms() {
+		if (tfIdfNorms != null)
+			return tfIdfNorms;
+		double[] squares = new double[images];
+		for (int w = 0; w < postings.length; w++) {
+			if (postings[w] == 0)
+				continue;
+			float idf = idf(w, Scoring.TF_IDF);
+			for (int p = 0; p < postings[w]; p++) {
+				double weight = postingCounts[w][p] * idf;
+				squares[postingImages[w][p]] += weight * weight;
+			}
+		}
+		float[] norms = new float[images];
+		for (int i = 0; i < images; i++)
+			norms[i] = (float) Math.max(Math.sqrt(squares[i]), 1e-6);
+		tfIdfNorms = norms;
+		return norms;
+	}
+
+	/**
+	 * @return the number of visual words
+	 */
+	public int words() {
+		return postings.length;
+	}
+
+	/**
+	 * @return the number of images
+	 */
+	public int size() {
+		return images;
+	}
+
+	/**
+	 * @return the number of images containing word w
+	 */
+	public int postings(int w) {
+		return postings[w];
+	}
+
+	/**
+	 * @return the number of posting entries, one per image and visual word
+	 *         in it
+	 */
+	public long postings() {
+		long sum = 0;
+		for (int n : postings)
+			sum += n;
+		return sum;
+	}
+}
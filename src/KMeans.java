@@ -0,0 +1,1143 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * The k-means clustering of doClusteringVisualWords on a ForkJoinPool.
+ *
+ * run() is the full k-means: the points are split into chunks whose size
+ * depends on the number of points and centroids only. Each chunk is
+ * assigned to the nearest centroids by its own task and sums its cluster
+ * members into its own partial sums, the partial sums are merged in chunk
+ * order at the end of each iteration. So for a fixed seed the visual words
+ * are the same for any number of threads, including none.
+ *
+ * runMiniBatch() is the mini-batch k-means of Sculley (Web-Scale K-Means
+ * Clustering, 2010): each iteration draws a small random batch of points
+ * and moves their nearest centroids towards them with a per centroid
+ * learning rate. It needs no per point state, only the batch is assigned
+ * in parallel, the updates are applied in batch order.
+ *
+ * The full k-means skips most distance computations with the bounds of
+ * Hamerly (Making k-means even faster, 2010): each point keeps a lower
+ * bound of the distance to its second nearest centroid, which shrinks by
+ * the largest centroid movement of each iteration. As long as the exact
+ * distance to its centroid is below that bound, or below half the
+ * distance of its centroid to the nearest other one, the point provably
+ * keeps its centroid and the other k - 1 distances are not computed.
+ * Reseeded centroids jump too far for this, the distances to them are
+ * computed directly instead.
+ *
+ * The full k-means can write its state to a ClusteringCheckpoint between
+ * two iterations and resume from it, see setCheckpoint.
+ *
+ * Both start with k random points, with k-means++ (Arthur, Vassilvitskii:
+ * k-means++: The Advantages of Careful Seeding, 2007) or with k-means||
+ * (Bahmani et al.: Scalable K-Means++, 2012) as start centroids, see
+ * setSeeding.
+ */
+public class KMeans {
+
+	// the start centroids are k random points
+	public static final int SEEDING_RANDOM = 0;
+
+	// k-means++: each next start centroid is a point drawn with a
+	// probability proportional to its squared distance to the nearest one
+	// chosen so far, this takes k passes over the points
+	public static final int SEEDING_PLUS_PLUS = 1;
+
+	// k-means||: a few passes draw many candidates at once, the start
+	// centroids are chosen among them by a weighted k-means++
+	public static final int SEEDING_PARALLEL = 2;
+
+	// fraction of the members of a cluster which are used for its center
+	private static final float PERCENT = 0.75f;
+
+	// smallest and maximum number of chunks per iteration
+	private static final int MIN_CHUNK = 1024;
+	private static final int MAX_CHUNKS = 64;
+
+	// doubles of all partial sums of one iteration
+	private static final int PARTIAL_SUM_BUDGET = 1 << 22;
+
+	// batch points per parallel task of the mini-batch assignment
+	private static final int BATCH_CHUNK = 256;
+
+	// mini-batch iterations between the reseeds of starving centroids
+	private static final int RESEED_INTERVAL = 10;
+
+	// points per parallel task of the seeding
+	private static final int SEED_CHUNK = 4096;
+
+	// relative safety margin of the bounds against rounding errors, so the
+	// bounds never change an assignment
+	private static final float BOUND_SLACK = 1e-4f;
+
+	// passes of k-means|| and the expected candidates per pass / k
+	private static final int PARALLEL_ROUNDS = 5;
+	private static final int OVERSAMPLING = 1;
+
+	private final DescriptorMatrix points;
+	private final int k;
+	private final int minCount;
+	private final long seed;
+
+	// null runs everything in the calling thread
+	private final ForkJoinPool pool;
+
+	private int seeding = SEEDING_RANDOM;
+
+	// the full k-means stops reseeding after this many reseed rounds
+	private int maxReseedRounds = Integer.MAX_VALUE;
+
+	// skip distance computations with the triangle inequality
+	private boolean bounds = true;
+
+	private final int n;
+	private final int dim;
+
+	// centroid c is stored at c * dim
+	private final float[] centroids;
+	private final float[] verificationValues;
+
+	// the state of the full k-means, allocated by run()
+	private int chunkSize;
+	private int chunks;
+
+	// nearest centroid of each point and the distance to it
+	private int[] assignment;
+	private float[] distances;
+
+	// members of centroid c in chunk j: chunkCounts[j * k + c]
+	private int[] chunkCounts;
+	private int[] counts;
+
+	// sum of the used members of each centroid per chunk, null until used
+	private double[][] partialSums;
+
+	// lower bound of the distance of each point to its second nearest
+	// centroid and the centroids of the last assignment, null before the
+	// first assignment
+	private float[] lowerBounds;
+	private float[] previous;
+
+	// centroids moved to a random position since the last assignment
+	private boolean[] reseededCentroids;
+
+	// point to centroid distances computed and skipped by the bounds per
+	// chunk
+	private long[] chunkComputed;
+	private long[] chunkSkipped;
+
+	// squared distances and changed assignments per chunk, their sums of
+	// the last assignment
+	private double[] chunkInertia;
+	private int[] chunkReassigned;
+	private double inertia;
+	private int reassigned;
+
+	// informed after each iteration, may be null
+	private ClusteringListener listener;
+
+	// the full k-means writes its state to this file at most every
+	// checkpointInterval ms, null = no checkpoints
+	private File checkpoint;
+	private long checkpointInterval;
+
+	// fingerprint of the input, computed once per run, null = not yet
+	private Long fingerprint;
+
+	// iterations restored from the checkpoint by the last run
+	private int resumedIterations;
+
+	// whether the points have been assigned once by the current run
+	private boolean assigned;
+
+	// statistics of the last run
+	private int iterations;
+	private int reseedRounds;
+	private int reseeded;
+	private long computed;
+	private long skipped;
+
+	// a loop body run by forEach
+	interface Task {
+		void run(int i);
+	}
+
+	/**
+	 * @param points
+	 *            all found features in the training set
+	 * @param k
+	 *            how many classes (visual words)
+	 * @param minCount
+	 *            the minimum number of members in each class
+	 * @param seed
+	 *            of the random start points
+	 * @param pool
+	 *            runs the chunks in parallel, null = sequential
+	 */
+	public KMeans(DescriptorMatrix points, int k, int minCount, long seed,
+			ForkJoinPool pool) {
+		this.points = points;
+		this.k = k;
+		this.minCount = minCount;
+		this.seed = seed;
+		this.pool = pool;
+
+		n = points.size();
+		dim = points.dimension();
+		centroids = new float[k * dim];
+		verificationValues = new float[k];
+	}
+
+	/**
+	 * @param seeding
+	 *            how the start centroids are chosen: SEEDING_RANDOM,
+	 *            SEEDING_PLUS_PLUS or SEEDING_PARALLEL
+	 */
+	public void setSeeding(int seeding) {
+		this.seeding = seeding;
+	}
+
+	/**
+	 * Limits the reseeding of under populated centroids by the full
+	 * k-means, which never ends if the points can not be split into k
+	 * clusters of minCount points, e.g. a single tight cluster. After that
+	 * many rounds smaller clusters are kept as they are.
+	 */
+	public void setMaxReseedRounds(int maxReseedRounds) {
+		this.maxReseedRounds = maxReseedRounds;
+	}
+
+	/**
+	 * @param bounds
+	 *            skip distance computations of the full k-means with the
+	 *            triangle inequality, the result is the same
+	 */
+	public void setBounds(boolean bounds) {
+		this.bounds = bounds;
+	}
+
+	/**
+	 * @param listener
+	 *            gets the statistics of each iteration of the full k-means
+	 *            and of each batch of the mini-batch k-means, null = none
+	 */
+	public void setListener(ClusteringListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Lets the full k-means write its state to a checkpoint file after an
+	 * iteration if at least interval ms passed since the last one. A run
+	 * with the same points and parameters continues from an existing
+	 * checkpoint and gives the same visual words as if it never stopped, the
+	 * file is deleted when the run is finished.
+	 * 
+	 * @param file
+	 *            the checkpoint file, null = no checkpoints
+	 * @param interval
+	 *            minimum ms between two checkpoints, 0 = every iteration
+	 */
+	public void setCheckpoint(File file, long interval) {
+		this.checkpoint = file;
+		this.checkpointInterval = interval;
+	}
+
+	/**
+	 * @return the iterations of the last run which were restored from the
+	 *         checkpoint, 0 if it started from scratch
+	 */
+	public int getResumedIterations() {
+		return resumedIterations;
+	}
+
+	/**
+	 * @return the assignment passes of the last run, the batches for the
+	 *         mini-batch k-means
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return the iterations of the last run which had to move under
+	 *         populated centroids to a new random position
+	 */
+	public int getReseedRounds() {
+		return reseedRounds;
+	}
+
+	/**
+	 * @return the number of centroids moved to a new random position in the
+	 *         last run
+	 */
+	public int getReseeded() {
+		return reseeded;
+	}
+
+	/**
+	 * @return the point to centroid distances computed by the assignments
+	 *         of the last full k-means, since the resume if it was resumed.
+	 *         A point whose bounds fail gets the distances of the bound
+	 *         checks and of the full search counted.
+	 */
+	public long getComputedDistances() {
+		return computed;
+	}
+
+	/**
+	 * @return the point to centroid distances the bounds saved in the last
+	 *         full k-means
+	 */
+	public long getSkippedDistances() {
+		return skipped;
+	}
+
+	/**
+	 * Runs the full k-means
+	 * 
+	 * @return the centroides of the k-mean = visual words list
+	 */
+	public List<VisualWord> run() {
+		fingerprint = null;
+		int maxChunks = Math.max(1, Math.min(MAX_CHUNKS, PARTIAL_SUM_BUDGET
+				/ Math.max(1, k * dim)));
+		chunkSize = Math.max(MIN_CHUNK, (n + maxChunks - 1) / maxChunks);
+		chunks = Math.max(1, (n + chunkSize - 1) / chunkSize);
+		assignment = new int[n];
+		distances = new float[n];
+		chunkCounts = new int[chunks * k];
+		counts = new int[k];
+		partialSums = new double[chunks][];
+		lowerBounds = null;
+		previous = null;
+		reseededCentroids = new boolean[k];
+		chunkComputed = new long[chunks];
+		chunkSkipped = new long[chunks];
+		chunkInertia = new double[chunks];
+		chunkReassigned = new int[chunks];
+
+		Random rnd = new Random(seed);
+		iterations = 0;
+		reseedRounds = 0;
+		reseeded = 0;
+		computed = 0;
+		skipped = 0;
+		assigned = false;
+
+		// cluster search
+		int newRandPos = 1;
+		boolean testAfterCenter = false;
+		ClusteringCheckpoint resumed = resume();
+		if (resumed != null) {
+			System.arraycopy(resumed.centroids, 0, centroids, 0,
+					centroids.length);
+			System.arraycopy(resumed.verificationValues, 0,
+					verificationValues, 0, k);
+			System.arraycopy(resumed.reseededCentroids, 0, reseededCentroids,
+					0, k);
+			iterations = resumed.iterations;
+			reseedRounds = resumed.reseedRounds;
+			reseeded = resumed.reseeded;
+			testAfterCenter = resumed.testAfterCenter;
+			rnd = resumed.rnd;
+		} else {
+			seed(rnd);
+		}
+		resumedIterations = iterations;
+		long lastCheckpoint = System.currentTimeMillis();
+		while (newRandPos > 0) {
+			long start = System.nanoTime();
+			assign();
+			iterations++;
+
+			// set centroids with less than minCount point to a new random
+			// position
+			newRandPos = 0;
+			for (int c = 0; c < k && reseedRounds < maxReseedRounds; c++) {
+				if (counts[c] < minCount) {
+					newRandPos++;
+					setCentroid(c, rnd.nextInt(n));
+					reseededCentroids[c] = true;
+				}
+			}
+			int moved = newRandPos;
+
+			if (newRandPos > 0) {
+				reseedRounds++;
+				reseeded += newRandPos;
+			}
+
+			// move centroid into the center
+			if (newRandPos == 0) {
+				center();
+
+				if (!testAfterCenter) {
+					testAfterCenter = true;
+					newRandPos++;
+				}
+			} else {
+				testAfterCenter = false;
+			}
+			iterationDone(iterations, start, inertia, reassigned, moved, n);
+
+			if (checkpoint != null
+					&& newRandPos > 0
+					&& System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+				writeCheckpoint(rnd, testAfterCenter);
+				lastCheckpoint = System.currentTimeMillis();
+			}
+		}
+		if (checkpoint != null)
+			checkpoint.delete();
+
+		return words(centroids, verificationValues, k, dim);
+	}
+
+	/**
+	 * @return the state of the run this one continues, null if there is
+	 *         none
+	 */
+	private ClusteringCheckpoint resume() {
+		if (checkpoint == null)
+			return null;
+		return ClusteringCheckpoint.read(checkpoint, checkpoint(null, false));
+	}
+
+	/**
+	 * @return the current state, the identification only if rnd is null
+	 */
+	private ClusteringCheckpoint checkpoint(Random rnd,
+			boolean testAfterCenter) {
+		ClusteringCheckpoint c = new ClusteringCheckpoint();
+		if (fingerprint == null)
+			fingerprint = ClusteringCheckpoint.fingerprint(points);
+		c.fingerprint = fingerprint;
+		c.n = n;
+		c.k = k;
+		c.dimension = dim;
+		c.minCount = minCount;
+		c.seed = seed;
+		c.seeding = seeding;
+		if (rnd == null)
+			return c;
+		c.iterations = iterations;
+		c.reseedRounds = reseedRounds;
+		c.reseeded = reseeded;
+		c.testAfterCenter = testAfterCenter;
+		c.centroids = centroids;
+		c.verificationValues = verificationValues;
+		c.reseededCentroids = reseededCentroids;
+		c.rnd = rnd;
+		return c;
+	}
+
+	/**
+	 * Writes a checkpoint, a failure is reported but does not stop the
+	 * clustering
+	 */
+	private void writeCheckpoint(Random rnd, boolean testAfterCenter) {
+		try {
+			checkpoint(rnd, testAfterCenter).write(checkpoint);
+		} catch (IOException e) {
+			System.err.println("can not write checkpoint " + checkpoint + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs the mini-batch k-means. Stops after maxIterations batches or as
+	 * soon as the smoothed mean squared distance of the batches did not
+	 * improve for patience batches.
+	 * 
+	 * A centroid which got less than its share of minCount points since the
+	 * last reseed is moved to a random point of the current batch every
+	 * RESEED_INTERVAL batches. The verification values are computed on a
+	 * random sample of the points at the end.
+	 * 
+	 * @param batchSize
+	 *            points per batch
+	 * @param decay
+	 *            the learning rate of a centroid is 1 / members^decay, 1 is
+	 *            the running mean of all points it ever got
+	 * @return the centroides of the k-mean = visual words list
+	 */
+	public List<VisualWord> runMiniBatch(int batchSize, int maxIterations,
+			float decay, int patience) {
+		Random rnd = new Random(seed);
+		seed(rnd);
+		reseedRounds = 0;
+		reseeded = 0;
+
+		int[] batch = new int[batchSize];
+		int[] nearest = new int[batchSize];
+		float[] batchDistances = new float[batchSize];
+		long[] members = new long[k];
+		int[] recent = new int[k];
+
+		// smoothing of the batch error like in scikit-learn
+		double alpha = Math.min(1.0, 2.0 * batchSize / (n + 1));
+		double smoothed = -1;
+		double best = Double.MAX_VALUE;
+		int noImprovement = 0;
+		int iteration = 0;
+		while (iteration < maxIterations && noImprovement < patience) {
+			long start = System.nanoTime();
+			for (int i = 0; i < batchSize; i++)
+				batch[i] = rnd.nextInt(n);
+			assign(batch, batchSize, nearest, batchDistances);
+
+			double error = 0;
+			for (int i = 0; i < batchSize; i++) {
+				int c = nearest[i];
+				members[c]++;
+				recent[c]++;
+				float eta = (float) (1 / Math.pow(members[c], decay));
+				int p = points.offset(batch[i]);
+				int s = c * dim;
+				for (int d = 0; d < dim; d++)
+					centroids[s + d] += eta
+							* (points.descriptors[p + d] - centroids[s + d]);
+				error += batchDistances[i] * batchDistances[i];
+			}
+			double batchInertia = error;
+			error /= batchSize;
+			smoothed = smoothed < 0 ? error : smoothed * (1 - alpha) + error
+					* alpha;
+			if (smoothed < best) {
+				best = smoothed;
+				noImprovement = 0;
+			} else {
+				noImprovement++;
+			}
+			iteration++;
+
+			int moved = 0;
+			if (iteration % RESEED_INTERVAL == 0) {
+				// the points drawn since the last reseed
+				long drawn = (long) RESEED_INTERVAL * batchSize;
+				for (int c = 0; c < k; c++) {
+					if ((long) recent[c] * n < (long) minCount * drawn) {
+						System.arraycopy(points.descriptors, points
+								.offset(batch[rnd.nextInt(batchSize)]),
+								centroids, c * dim, dim);
+						members[c] = 0;
+						moved++;
+					}
+				}
+				Arrays.fill(recent, 0);
+				if (moved > 0) {
+					reseedRounds++;
+					reseeded += moved;
+				}
+			}
+			// the batch points have no previous assignment
+			iterationDone(iteration, start, batchInertia, -1, moved, batchSize);
+		}
+		iterations = iteration;
+
+		// the verification values of a sample
+		int sampleSize = Math.min(n, Math.max(10 * batchSize, 100 * k));
+		int[] sample = new int[sampleSize];
+		for (int i = 0; i < sampleSize; i++)
+			sample[i] = rnd.nextInt(n);
+		int[] sampleNearest = new int[sampleSize];
+		float[] sampleDistances = new float[sampleSize];
+		assign(sample, sampleSize, sampleNearest, sampleDistances);
+		int[] sampleCounts = new int[k];
+		for (int i = 0; i < sampleSize; i++)
+			sampleCounts[sampleNearest[i]]++;
+		float[][] distanceLimit = new float[k][];
+		for (int c = 0; c < k; c++)
+			distanceLimit[c] = new float[sampleCounts[c]];
+		Arrays.fill(sampleCounts, 0);
+		for (int i = 0; i < sampleSize; i++) {
+			int c = sampleNearest[i];
+			distanceLimit[c][sampleCounts[c]++] = sampleDistances[i];
+		}
+		for (int c = 0; c < k; c++) {
+			Arrays.sort(distanceLimit[c]);
+			int pos = (int) Math.ceil(sampleCounts[c] * PERCENT) - 1;
+			verificationValues[c] = pos < 0 ? 0 : distanceLimit[c][pos];
+		}
+
+		return words(centroids, verificationValues, k, dim);
+	}
+
+	/**
+	 * Chooses the start centroids according to the seeding
+	 */
+	private void seed(Random rnd) {
+		if (seeding == SEEDING_PLUS_PLUS)
+			seedPlusPlus(rnd);
+		else if (seeding == SEEDING_PARALLEL)
+			seedParallel(rnd);
+		else
+			for (int c = 0; c < k; c++)
+				setCentroid(c, rnd.nextInt(n));
+	}
+
+	/**
+	 * @return the k start centroids chosen by the seeding, centroid c starts
+	 *         at c * dimension
+	 */
+	float[] startCentroids() {
+		seed(new Random(seed));
+		return Arrays.copyOf(centroids, centroids.length);
+	}
+
+	private void setCentroid(int c, int point) {
+		System.arraycopy(points.descriptors, points.offset(point), centroids,
+				c * dim, dim);
+	}
+
+	/**
+	 * Greedy k-means++ seeding: of 2 + ln(k) drawn points the one which
+	 * reduces the sum of the squared distances most becomes the next start
+	 * centroid, which avoids most outliers. The squared distances to the
+	 * nearest start centroid are updated in parallel chunks, their sums are
+	 * added up in chunk order, so the drawn points only depend on the random
+	 * numbers.
+	 */
+	private void seedPlusPlus(Random rnd) {
+		final int seedChunks = (n + SEED_CHUNK - 1) / SEED_CHUNK;
+		final float[] d2 = new float[n];
+		Arrays.fill(d2, Float.MAX_VALUE);
+		final double[] chunkSums = new double[seedChunks];
+		final int trials = 2 + (int) Math.log(k);
+		final int[] trial = new int[trials];
+		final double[] trialSums = new double[seedChunks * trials];
+
+		setCentroid(0, rnd.nextInt(n));
+		for (int c = 1; c <= k; c++) {
+			final int last = c - 1;
+			forEach(pool, seedChunks, new Task() {
+				public void run(int j) {
+					double sum = 0;
+					int end = Math.min(n, (j + 1) * SEED_CHUNK);
+					for (int i = j * SEED_CHUNK; i < end; i++) {
+						float d = points.distance(i, centroids, last * dim);
+						d2[i] = Math.min(d2[i], d * d);
+						sum += d2[i];
+					}
+					chunkSums[j] = sum;
+				}
+			});
+			if (c == k)
+				break;
+
+			for (int t = 0; t < trials; t++)
+				trial[t] = draw(rnd, d2, chunkSums, SEED_CHUNK);
+			forEach(pool, seedChunks, new Task() {
+				public void run(int j) {
+					int end = Math.min(n, (j + 1) * SEED_CHUNK);
+					for (int t = 0; t < trials; t++) {
+						double sum = 0;
+						int p = points.offset(trial[t]);
+						for (int i = j * SEED_CHUNK; i < end; i++) {
+							float d = points.distance(i, points.descriptors, p);
+							sum += Math.min(d2[i], d * d);
+						}
+						trialSums[j * trials + t] = sum;
+					}
+				}
+			});
+			int best = 0;
+			double bestSum = Double.MAX_VALUE;
+			for (int t = 0; t < trials; t++) {
+				double sum = 0;
+				for (int j = 0; j < seedChunks; j++)
+					sum += trialSums[j * trials + t];
+				if (sum < bestSum) {
+					bestSum = sum;
+					best = t;
+				}
+			}
+			setCentroid(c, trial[best]);
+		}
+	}
+
+	/**
+	 * @return a point drawn with a probability proportional to its weight,
+	 *         weights[j * chunkSize ...] add up to chunkSums[j]
+	 */
+	private static int draw(Random rnd, float[] weights, double[] chunkSums,
+			int chunkSize) {
+		double total = 0;
+		for (double sum : chunkSums)
+			total += sum;
+		if (total <= 0)
+			return rnd.nextInt(weights.length);
+
+		double r = rnd.nextDouble() * total;
+		int j = 0;
+		while (j < chunkSums.length - 1 && r >= chunkSums[j])
+			r -= chunkSums[j++];
+		int end = Math.min(weights.length, (j + 1) * chunkSize);
+		int last = j * chunkSize;
+		for (int i = j * chunkSize; i < end; i++) {
+			if (weights[i] > 0) {
+				last = i;
+				r -= weights[i];
+				if (r < 0)
+					break;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * k-means|| seeding. Each of the PARALLEL_ROUNDS passes keeps every point
+	 * with a probability of OVERSAMPLING * k * d^2 / sum(d^2) as a
+	 * candidate, where d is the distance to the nearest candidate so far.
+	 * Every chunk draws its own random numbers from the round seed and the
+	 * chunk number, so the candidates do not depend on the threads. The
+	 * candidates are weighted by the number of points they are the nearest
+	 * for and the start centroids are chosen among them by the greedy
+	 * k-means++.
+	 */
+	private void seedParallel(Random rnd) {
+		final int seedChunks = (n + SEED_CHUNK - 1) / SEED_CHUNK;
+		final float[] d2 = new float[n];
+		Arrays.fill(d2, Float.MAX_VALUE);
+		final int[] nearest = new int[n];
+		final double[] chunkSums = new double[seedChunks];
+
+		final List<Integer> candidates = new ArrayList<Integer>();
+		candidates.add(rnd.nextInt(n));
+		final List<List<Integer>> drawn = new ArrayList<List<Integer>>();
+		for (int j = 0; j < seedChunks; j++)
+			drawn.add(new ArrayList<Integer>());
+
+		int newCandidates = 0;
+		for (int round = 0; round <= PARALLEL_ROUNDS; round++) {
+			// the distances to the candidates of the last round
+			final int from = newCandidates;
+			final int to = candidates.size();
+			forEach(pool, seedChunks, new Task() {
+				public void run(int j) {
+					double sum = 0;
+					int end = Math.min(n, (j + 1) * SEED_CHUNK);
+					for (int i = j * SEED_CHUNK; i < end; i++) {
+						for (int c = from; c < to; c++) {
+							float d = points.distance(i, points.descriptors,
+									points.offset(candidates.get(c)));
+							if (d * d < d2[i]) {
+								d2[i] = d * d;
+								nearest[i] = c;
+							}
+						}
+						sum += d2[i];
+					}
+					chunkSums[j] = sum;
+				}
+			});
+			if (round == PARALLEL_ROUNDS)
+				break;
+
+			double total = 0;
+			for (double sum : chunkSums)
+				total += sum;
+			final double factor = total > 0 ? OVERSAMPLING * k / total : 0;
+			final long roundSeed = rnd.nextLong();
+			forEach(pool, seedChunks, new Task() {
+				public void run(int j) {
+					Random chunkRnd = new Random(roundSeed + j
+							* 0x9E3779B97F4A7C15L);
+					List<Integer> chunkDrawn = drawn.get(j);
+					chunkDrawn.clear();
+					int end = Math.min(n, (j + 1) * SEED_CHUNK);
+					for (int i = j * SEED_CHUNK; i < end; i++)
+						if (chunkRnd.nextDouble() < factor * d2[i])
+							chunkDrawn.add(i);
+				}
+			});
+			newCandidates = candidates.size();
+			for (List<Integer> chunkDrawn : drawn)
+				candidates.addAll(chunkDrawn);
+		}
+
+		// weighted k-means++ among the candidates
+		int m = candidates.size();
+		float[] weights = new float[m];
+		for (int i = 0; i < n; i++)
+			weights[nearest[i]]++;
+		DescriptorMatrix c = new DescriptorMatrix(dim, m);
+		for (int candidate : candidates)
+			c.add(0, 0, 0, 0, points.descriptors, points.offset(candidate));
+
+		float[] cd2 = new float[m];
+		Arrays.fill(cd2, Float.MAX_VALUE);
+		float[] p = new float[m];
+		int trials = 2 + (int) Math.log(k);
+		int chosen = draw(rnd, weights, new double[] { n }, m);
+		for (int s = 0; s < k; s++) {
+			if (s >= m) {
+				// less candidates than centroids, e.g. many equal points
+				setCentroid(s, rnd.nextInt(n));
+				continue;
+			}
+			System.arraycopy(c.descriptors, c.offset(chosen), centroids, s
+					* dim, dim);
+			double sum = 0;
+			for (int i = 0; i < m; i++) {
+				float d = c.distance(i, centroids, s * dim);
+				cd2[i] = Math.min(cd2[i], d * d);
+				p[i] = weights[i] * cd2[i];
+				sum += p[i];
+			}
+
+			// greedy like seedPlusPlus
+			double bestSum = Double.MAX_VALUE;
+			for (int t = 0; t < trials; t++) {
+				int candidate = draw(rnd, p, new double[] { sum }, m);
+				double trialSum = 0;
+				for (int i = 0; i < m; i++) {
+					float d = c.distance(i, c.descriptors, c.offset(candidate));
+					trialSum += weights[i] * Math.min(cd2[i], d * d);
+				}
+				if (trialSum < bestSum) {
+					bestSum = trialSum;
+					chosen = candidate;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the nearest centroid of point i, its distance is stored in
+	 *         distances[slot]
+	 */
+	private int nearest(int i, float[] distances, int slot) {
+		float distance = 0;
+		int centerNr = 0;
+		for (int c = 0; c < k; c++) {
+			float d = points.distance(i, centroids, c * dim);
+			if (c == 0 || d < distance) {
+				distance = d;
+				centerNr = c;
+			}
+		}
+		distances[slot] = distance;
+		return centerNr;
+	}
+
+	/**
+	 * Assigns the points indices[0 .. count-1] to their nearest centroids
+	 */
+	private void assign(final int[] indices, final int count,
+			final int[] nearest, final float[] distances) {
+		forEach(pool, (count + BATCH_CHUNK - 1) / BATCH_CHUNK, new Task() {
+			public void run(int j) {
+				int end = Math.min(count, (j + 1) * BATCH_CHUNK);
+				for (int i = j * BATCH_CHUNK; i < end; i++)
+					nearest[i] = nearest(indices[i], distances, i);
+			}
+		});
+	}
+
+	private void iterationDone(int number, long start, double inertia,
+			int reassigned, int reseeded, int points) {
+		if (listener == null)
+			return;
+		ClusteringListener.Iteration iteration = new ClusteringListener.Iteration();
+		iteration.number = number;
+		iteration.nanos = System.nanoTime() - start;
+		iteration.inertia = inertia;
+		iteration.reassigned = reassigned;
+		iteration.reseeded = reseeded;
+		iteration.points = points;
+		listener.iterationDone(iteration);
+	}
+
+	/**
+	 * @return the k centroids as visual words, the classID is the index
+	 */
+	static List<VisualWord> words(float[] centroids,
+			float[] verificationValues, int k, int dim) {
+		List<VisualWord> words = new ArrayList<VisualWord>(k);
+		for (int c = 0; c < k; c++) {
+			VisualWord word = new VisualWord();
+			word.centroied = new Feature(0, 0, new float[2], Arrays.copyOfRange(
+					centroids, c * dim, (c + 1) * dim));
+			word.classID = c;
+			word.verificationValue = verificationValues[c];
+			words.add(word);
+		}
+		return words;
+	}
+
+	/**
+	 * Allocates each point to the nearest centroid and counts the members.
+	 * With bounds a point whose centroid is provably still the nearest only
+	 * gets the distance to it computed. Sums up the inertia and the changed
+	 * assignments, all points count as changed at the first assignment.
+	 */
+	private void assign() {
+		// how far each centroid moved since the last assignment
+		final float[] moved = new float[k];
+		int farthest = -1;
+		float maxMoved = 0;
+		float secondMoved = 0;
+		final boolean useBounds = bounds && previous != null;
+		int jumps = 0;
+		for (boolean r : reseededCentroids)
+			if (r)
+				jumps++;
+		final int[] jumped = new int[jumps];
+		if (useBounds) {
+			for (int c = 0; c < k; c++) {
+				if (reseededCentroids[c]) {
+					jumped[--jumps] = c;
+					continue;
+				}
+				moved[c] = distance(previous, c * dim, centroids, c * dim, dim);
+				if (moved[c] > maxMoved) {
+					secondMoved = maxMoved;
+					maxMoved = moved[c];
+					farthest = c;
+				} else if (moved[c] > secondMoved) {
+					secondMoved = moved[c];
+				}
+			}
+		}
+		final int farthestCentroid = farthest;
+		final float maxMovement = maxMoved;
+		final float secondMovement = secondMoved;
+
+		// half the distance of each centroid to the nearest other one
+		final float[] half = new float[k];
+		if (useBounds) {
+			Arrays.fill(half, Float.MAX_VALUE);
+			for (int a = 0; a < k; a++) {
+				for (int b = a + 1; b < k; b++) {
+					float d = distance(centroids, a * dim, centroids, b * dim,
+							dim) / 2;
+					half[a] = Math.min(half[a], d);
+					half[b] = Math.min(half[b], d);
+				}
+			}
+		}
+
+		if (bounds && lowerBounds == null)
+			lowerBounds = new float[n];
+		final float[] lower = lowerBounds;
+		final boolean first = !assigned;
+
+		forEach(pool, chunks, new Task() {
+			public void run(int j) {
+				int[] chunkCount = new int[k];
+				long computes = 0;
+				long skip = 0;
+				double squares = 0;
+				int changed = 0;
+				int end = Math.min(n, (j + 1) * chunkSize);
+				for (int i = j * chunkSize; i < end; i++) {
+					if (useBounds && !reseededCentroids[assignment[i]]) {
+						int a = assignment[i];
+						lower[i] -= a == farthestCentroid ? secondMovement
+								: maxMovement;
+						float u = points.distance(i, centroids, a * dim);
+						int computedHere = 1;
+						boolean keep = u < Math.max(half[a], lower[i])
+								* (1 - BOUND_SLACK);
+						for (int r = 0; keep && r < jumped.length; r++) {
+							float d = points.distance(i, centroids, jumped[r]
+									* dim);
+							computedHere++;
+							lower[i] = Math.min(lower[i], d);
+							keep = u < d * (1 - BOUND_SLACK);
+						}
+						computes += computedHere;
+						if (keep) {
+							distances[i] = u;
+							squares += u * u;
+							chunkCount[a]++;
+							skip += k - computedHere;
+							continue;
+						}
+					}
+
+					// full search for the nearest and second nearest
+					float distance = 0;
+					float second = Float.MAX_VALUE;
+					int centerNr = 0;
+					computes += k;
+					for (int c = 0; c < k; c++) {
+						float d = points.distance(i, centroids, c * dim);
+						if (c == 0) {
+							distance = d;
+						} else if (d < distance) {
+							second = distance;
+							distance = d;
+							centerNr = c;
+						} else if (d < second) {
+							second = d;
+						}
+					}
+					if (first || assignment[i] != centerNr)
+						changed++;
+					assignment[i] = centerNr;
+					distances[i] = distance;
+					squares += distance * distance;
+					if (lower != null)
+						lower[i] = second;
+					chunkCount[centerNr]++;
+				}
+				System.arraycopy(chunkCount, 0, chunkCounts, j * k, k);
+				chunkComputed[j] = computes;
+				chunkSkipped[j] = skip;
+				chunkInertia[j] = squares;
+				chunkReassigned[j] = changed;
+			}
+		});
+
+		Arrays.fill(counts, 0);
+		inertia = 0;
+		reassigned = 0;
+		for (int j = 0; j < chunks; j++) {
+			for (int c = 0; c < k; c++)
+				counts[c] += chunkCounts[j * k + c];
+			computed += chunkComputed[j];
+			skipped += chunkSkipped[j];
+			inertia += chunkInertia[j];
+			reassigned += chunkReassigned[j];
+		}
+		if (bounds)
+			previous = Arrays.copyOf(centroids, centroids.length);
+		Arrays.fill(reseededCentroids, false);
+		assigned = true;
+	}
+
+	/**
+	 * @return the Euclidean distance of the dim values of a starting at
+	 *         aOffset and of b starting at bOffset
+	 */
+	static float distance(float[] a, int aOffset, float[] b, int bOffset,
+			int dim) {
+		float d = 0;
+		for (int i = 0; i < dim; i++) {
+			float x = a[aOffset + i] - b[bOffset + i];
+			d += x * x;
+		}
+		return (float) Math.sqrt(d);
+	}
+
+	/**
+	 * Moves each centroid to the mean of the first PERCENT of its members in
+	 * point order and sets its verification value to the distance below
+	 * which PERCENT of its members are
+	 */
+	private void center() {
+		// members of centroid c in point order:
+		// members[start[c]] ... members[start[c + 1] - 1]
+		final int[] start = new int[k + 1];
+		for (int c = 0; c < k; c++)
+			start[c + 1] = start[c] + counts[c];
+		final int[] used = new int[k];
+		for (int c = 0; c < k; c++)
+			used[c] = (int) Math.ceil(counts[c] * PERCENT) - 1;
+
+		// where the members of chunk j start: chunkStart[j * k + c]
+		final int[] chunkStart = new int[chunks * k];
+		int[] next = Arrays.copyOf(start, k);
+		for (int j = 0; j < chunks; j++) {
+			for (int c = 0; c < k; c++) {
+				chunkStart[j * k + c] = next[c];
+				next[c] += chunkCounts[j * k + c];
+			}
+		}
+
+		final int[] members = new int[n];
+		forEach(pool, chunks, new Task() {
+			public void run(int j) {
+				if (partialSums[j] == null)
+					partialSums[j] = new double[k * dim];
+				double[] sums = partialSums[j];
+				Arrays.fill(sums, 0.0);
+
+				int[] next = Arrays.copyOfRange(chunkStart, j * k, (j + 1) * k);
+				int end = Math.min(n, (j + 1) * chunkSize);
+				for (int i = j * chunkSize; i < end; i++) {
+					int c = assignment[i];
+					int rank = next[c] - start[c];
+					members[next[c]++] = i;
+					if (rank < used[c]) {
+						int p = points.offset(i);
+						int s = c * dim;
+						for (int d = 0; d < dim; d++)
+							sums[s + d] += points.descriptors[p + d];
+					}
+				}
+			}
+		});
+
+		// merge the partial sums in chunk order
+		forEach(pool, k, new Task() {
+			public void run(int c) {
+				int s = c * dim;
+				// a cluster of one point or none (only if the reseeding
+				// was limited) keeps its centroid
+				for (int d = 0; d < dim && used[c] > 0; d++) {
+					double dx = 0;
+					for (int j = 0; j < chunks; j++)
+						dx += partialSums[j][s + d];
+					centroids[s + d] = (float) (dx / used[c]);
+				}
+
+				float[] distanceLimit = new float[counts[c]];
+				for (int i = 0; i < counts[c]; i++)
+					distanceLimit[i] = distances[members[start[c] + i]];
+				Arrays.sort(distanceLimit);
+				verificationValues[c] = used[c] < 0 ? 0
+						: distanceLimit[used[c]];
+			}
+		});
+	}
+
+	/**
+	 * Runs task for 0 .. n-1 on the pool and waits for all of them, in the
+	 * calling thread if pool is null. Also used by OutOfCoreKMeans,
+	 * VocabularyTree and SiftDetector.
+	 */
+	static void forEach(ForkJoinPool pool, int n, final Task task) {
+		if (pool == null || n < 2) {
+			for (int i = 0; i < n; i++)
+				task.run(i);
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(n);
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					task.run(index);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
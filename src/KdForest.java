@@ -0,0 +1,273 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An approximate nearest neighbour index over the centroids of the visual
+ * words: a forest of randomized k-d trees (Silpa-Anan, Hartley: Optimised
+ * KD-trees for fast image descriptor matching, 2008; Muja, Lowe: Fast
+ * Approximate Nearest Neighbors with Automatic Algorithm Configuration,
+ * 2009).
+ *
+ * Each tree splits at the mean of one of the RANDOM_DIMENSIONS dimensions
+ * with the largest variance, chosen at random, so the trees differ. A
+ * search descends all trees and then continues with the closest unexplored
+ * branches of all trees from one priority queue, ordered by the summed
+ * squared distances to the split planes on the way, until checks centroids
+ * have been compared. More checks give a better recall, checks >= the
+ * number of centroids give the exact nearest centroid.
+ *
+ * The index is immutable, search can be called by several threads at once.
+ */
+public class KdForest {
+
+	// the split dimension is chosen among this many of the largest variance
+	private static final int RANDOM_DIMENSIONS = 5;
+
+	// points used to estimate the mean and the variance of a node
+	private static final int VARIANCE_SAMPLE = 100;
+
+	private final float[] centroids;
+	private final int dim;
+	private final int count;
+
+	// node n of all trees: splitDimension[n] < 0 marks a leaf whose centroid
+	// is low[n], otherwise the children are low[n] (values < splitValue[n])
+	// and high[n]. roots[t] is the root of tree t.
+	private int[] splitDimension;
+	private float[] splitValue;
+	private int[] low;
+	private int[] high;
+	private int nodes;
+	private final int[] roots;
+
+	// the per thread search state
+	private final ThreadLocal<Search> search = new ThreadLocal<Search>() {
+		protected Search initialValue() {
+			return new Search();
+		}
+	};
+
+	private class Search {
+		// centroid c has been compared in the query with stamp visited[c]
+		final int[] visited = new int[count];
+		int stamp;
+
+		// min-heap of branches: node and summed squared distances to the
+		// split planes crossed to reach it
+		int[] heapNodes = new int[64];
+		float[] heapKeys = new float[64];
+		int heapSize;
+
+		void push(int node, float key) {
+			if (heapSize == heapNodes.length) {
+				heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+				heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+			}
+			int i = heapSize++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (heapKeys[parent] <= key)
+					break;
+				heapNodes[i] = heapNodes[parent];
+				heapKeys[i] = heapKeys[parent];
+				i = parent;
+			}
+			heapNodes[i] = node;
+			heapKeys[i] = key;
+		}
+
+		/**
+		 * Removes the top of the heap, read it before
+		 */
+		void pop() {
+			int node = heapNodes[--heapSize];
+			float key = heapKeys[heapSize];
+			int i = 0;
+			while (2 * i + 1 < heapSize) {
+				int child = 2 * i + 1;
+				if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child])
+					child++;
+				if (key <= heapKeys[child])
+					break;
+				heapNodes[i] = heapNodes[child];
+				heapKeys[i] = heapKeys[child];
+				i = child;
+			}
+			heapNodes[i] = node;
+			heapKeys[i] = key;
+		}
+	}
+
+	/**
+	 * Builds the forest
+	 *
+	 * @param centroids
+	 *            count centroids, centroid c starts at c * dim
+	 * @param trees
+	 *            number of randomized trees
+	 */
+	public KdForest(float[] centroids, int dim, int trees, long seed) {
+		this.centroids = centroids;
+		this.dim = dim;
+		this.count = centroids.length / dim;
+		roots = new int[trees];
+
+		// each tree has count leaves and count - 1 inner nodes
+		int capacity = trees * Math.max(1, 2 * count - 1);
+		splitDimension = new int[capacity];
+		splitValue = new float[capacity];
+		low = new int[capacity];
+		high = new int[capacity];
+
+		Random rnd = new Random(seed);
+		int[] indices = new int[count];
+		for (int t = 0; t < trees; t++) {
+			for (int i = 0; i < count; i++)
+				indices[i] = i;
+			roots[t] = build(indices, 0, count, rnd);
+		}
+	}
+
+	/**
+	 * @return the root of a tree over the centroids indices[from .. to-1]
+	 */
+	private int build(int[] indices, int from, int to, Random rnd) {
+		int node = nodes++;
+		if (to - from <= 1) {
+			splitDimension[node] = -1;
+			low[node] = to > from ? indices[from] : 0;
+			return node;
+		}
+
+		// mean and variance of each dimension on a sample of the node
+		int sample = Math.min(to - from, VARIANCE_SAMPLE);
+		double[] mean = new double[dim];
+		double[] variance = new double[dim];
+		for (int s = 0; s < sample; s++) {
+			int o = indices[from + s] * dim;
+			for (int d = 0; d < dim; d++)
+				mean[d] += centroids[o + d];
+		}
+		for (int d = 0; d < dim; d++)
+			mean[d] /= sample;
+		for (int s = 0; s < sample; s++) {
+			int o = indices[from + s] * dim;
+			for (int d = 0; d < dim; d++) {
+				double x = centroids[o + d] - mean[d];
+				variance[d] += x * x;
+			}
+		}
+
+		// a random one of the dimensions with the largest variance
+		int candidates = Math.min(RANDOM_DIMENSIONS, dim);
+		int[] top = new int[candidates];
+		Arrays.fill(top, -1);
+		for (int d = 0; d < dim; d++) {
+			int j = candidates;
+			while (j > 0 && (top[j - 1] < 0 || variance[d] > variance[top[j - 1]]))
+				j--;
+			if (j < candidates) {
+				System.arraycopy(top, j, top, j + 1, candidates - j - 1);
+				top[j] = d;
+			}
+		}
+		int split = top[rnd.nextInt(candidates)];
+		float value = (float) mean[split];
+
+		// partition at the mean, in half if all values are on one side
+		int i = from;
+		int j = to - 1;
+		while (i <= j) {
+			if (centroids[indices[i] * dim + split] < value) {
+				i++;
+			} else {
+				int t = indices[i];
+				indices[i] = indices[j];
+				indices[j--] = t;
+			}
+		}
+		if (i == from || i == to) {
+			i = (from + to) / 2;
+			value = Float.NaN;
+		}
+
+		splitDimension[node] = split;
+		splitValue[node] = value;
+		low[node] = build(indices, from, i, rnd);
+		high[node] = build(indices, i, to, rnd);
+		return node;
+	}
+
+	/**
+	 * Searches the nearest centroid of row i of a DescriptorMatrix
+	 *
+	 * @param checks
+	 *            maximum number of centroids compared
+	 * @param distance
+	 *            distance[0] is set to the distance to the centroid found
+	 * @return the index of the centroid found, -1 if there are none
+	 */
+	public int search(DescriptorMatrix m, int i, int checks, float[] distance) {
+		if (count == 0)
+			return -1;
+		Search s = search.get();
+		if (++s.stamp == 0) {
+			Arrays.fill(s.visited, 0);
+			s.stamp = 1;
+		}
+		s.heapSize = 0;
+
+		int p = m.offset(i);
+		float[] q = m.descriptors;
+		int best = -1;
+		float shortest = Float.MAX_VALUE;
+		int checked = 0;
+
+		for (int root : roots)
+			s.push(root, 0);
+		while (s.heapSize > 0 && (checked < checks || best < 0)) {
+			int node = s.heapNodes[0];
+			float key = s.heapKeys[0];
+			s.pop();
+
+			// descend to a leaf, queue the other branches
+			while (splitDimension[node] >= 0) {
+				float value = splitValue[node];
+				if (value != value) {
+					// split in half, both sides may hold the nearest
+					s.push(high[node], key);
+					node = low[node];
+					continue;
+				}
+				float diff = q[p + splitDimension[node]] - value;
+				if (diff < 0) {
+					s.push(high[node], key + diff * diff);
+					node = low[node];
+				} else {
+					s.push(low[node], key + diff * diff);
+					node = high[node];
+				}
+			}
+
+			int c = low[node];
+			if (s.visited[c] == s.stamp)
+				continue;
+			s.visited[c] = s.stamp;
+			checked++;
+			float d = m.distance(i, centroids, c * dim);
+			if (best < 0 || d < shortest) {
+				best = c;
+				shortest = d;
+			}
+		}
+		distance[0] = shortest;
+		return best;
+	}
+
+	/**
+	 * @return the number of centroids
+	 */
+	public int size() {
+		return count;
+	}
+}
@@ -0,0 +1,444 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A k-means clustering which streams the points from a DescriptorFile
+ * instead of keeping them in the heap, so it can cluster data sets several
+ * times larger than the heap.
+ *
+ * The rows are split into slices whose size depends on the number of rows
+ * and centroids only. Each slice is read block by block by its own task,
+ * which assigns the rows to the nearest centroids and adds them to its own
+ * partial sums and distance histograms. The partial sums are merged in
+ * slice order, so for a fixed seed the visual words do not depend on the
+ * number of threads. Per row nothing is kept, the heap use depends on the
+ * number of centroids only.
+ *
+ * It follows the full k-means of KMeans with two differences: a centroid
+ * moves to the mean of all its members (KMeans takes the first 75% in
+ * point order, which needs the members of each cluster), and the
+ * verification value, the distance below which 75% of the members are,
+ * is read from a histogram of the member distances. The start centroids
+ * are chosen by the seeding of KMeans on a random sample of the rows.
+ *
+ * Like the full KMeans it can checkpoint its state and resume from it.
+ */
+public class OutOfCoreKMeans {
+
+	// fraction of the members of a cluster within the verification value
+	private static final float PERCENT = 0.75f;
+
+	// rows read at once
+	private static final int BLOCK = 1024;
+
+	// maximum number of slices
+	private static final int MAX_SLICES = 64;
+
+	// doubles of all partial sums of one pass
+	private static final int PARTIAL_SUM_BUDGET = 1 << 22;
+
+	// rows per centroid in the sample for the seeding
+	private static final int SAMPLE_PER_CENTROID = 100;
+
+	// bins of the member distance histogram of each centroid
+	private static final int HISTOGRAM_BINS = 256;
+
+	private final DescriptorFile file;
+	private final int k;
+	private final int minCount;
+	private final long seed;
+
+	// null runs everything in the calling thread
+	private final ForkJoinPool pool;
+
+	private int seeding = KMeans.SEEDING_RANDOM;
+	private int maxReseedRounds = Integer.MAX_VALUE;
+
+	private final int n;
+	private final int dim;
+	private final int sliceSize;
+	private final int slices;
+
+	// centroid c is stored at c * dim
+	private float[] centroids;
+	private final float[] verificationValues;
+	private final int[] counts;
+
+	// per slice: members and their sum of each centroid, histogram of the
+	// distances of centroid c at c * HISTOGRAM_BINS
+	private final int[][] sliceCounts;
+	private final double[][] sliceSums;
+	private final int[][] histograms;
+
+	// squared distances of the rows per slice and their sum of the last pass
+	private final double[] sliceInertia;
+	private double inertia;
+
+	// informed after each pass, may be null
+	private ClusteringListener listener;
+
+	// the state is written to this file at most every checkpointInterval
+	// ms, null = no checkpoints
+	private File checkpoint;
+	private long checkpointInterval;
+
+	// fingerprint of the input, computed once per run, null = not yet
+	private Long fingerprint;
+	private int resumedIterations;
+
+	// upper end of the histograms
+	private float histogramMax;
+
+	// statistics of the last run
+	private int iterations;
+	private int reseedRounds;
+	private int reseeded;
+
+	/**
+	 * @param file
+	 *            the descriptors of all found features in the training set
+	 * @param k
+	 *            how many classes (visual words)
+	 * @param minCount
+	 *            the minimum number of members in each class
+	 * @param seed
+	 *            of the random start points
+	 * @param pool
+	 *            runs the slices in parallel, null = sequential
+	 */
+	public OutOfCoreKMeans(DescriptorFile file, int k, int minCount,
+			long seed, ForkJoinPool pool) {
+		this.file = file;
+		this.k = k;
+		this.minCount = minCount;
+		this.seed = seed;
+		this.pool = pool;
+
+		n = file.size();
+		dim = file.dimension();
+		int maxSlices = Math.max(1, Math.min(MAX_SLICES, PARTIAL_SUM_BUDGET
+				/ Math.max(1, k * dim)));
+		sliceSize = Math.max(BLOCK, (n + maxSlices - 1) / maxSlices);
+		slices = Math.max(1, (n + sliceSize - 1) / sliceSize);
+
+		verificationValues = new float[k];
+		counts = new int[k];
+		sliceCounts = new int[slices][];
+		sliceSums = new double[slices][];
+		histograms = new int[slices][];
+		sliceInertia = new double[slices];
+	}
+
+	/**
+	 * @param seeding
+	 *            KMeans.SEEDING_RANDOM, SEEDING_PLUS_PLUS or SEEDING_PARALLEL
+	 */
+	public void setSeeding(int seeding) {
+		this.seeding = seeding;
+	}
+
+	/**
+	 * @see KMeans#setMaxReseedRounds(int)
+	 */
+	public void setMaxReseedRounds(int maxReseedRounds) {
+		this.maxReseedRounds = maxReseedRounds;
+	}
+
+	/**
+	 * @param listener
+	 *            gets the statistics of each pass, null = none. Nothing is
+	 *            kept per row, so the reassigned points are not known.
+	 */
+	public void setListener(ClusteringListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @see KMeans#setCheckpoint(File, long)
+	 */
+	public void setCheckpoint(File file, long interval) {
+		this.checkpoint = file;
+		this.checkpointInterval = interval;
+	}
+
+	/**
+	 * @return the passes of the last run which were restored from the
+	 *         checkpoint, 0 if it started from scratch
+	 */
+	public int getResumedIterations() {
+		return resumedIterations;
+	}
+
+	/**
+	 * @return the passes over the file of the last run
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	public int getReseedRounds() {
+		return reseedRounds;
+	}
+
+	public int getReseeded() {
+		return reseeded;
+	}
+
+	/**
+	 * @return the centroides of the k-mean = visual words list
+	 */
+	public List<VisualWord> run() {
+		fingerprint = null;
+		Random rnd = new Random(seed);
+		iterations = 0;
+		reseedRounds = 0;
+		reseeded = 0;
+
+		// cluster search
+		int newRandPos = 1;
+		boolean testAfterCenter = false;
+		ClusteringCheckpoint resumed = resume();
+		if (resumed != null) {
+			centroids = resumed.centroids;
+			System.arraycopy(resumed.verificationValues, 0,
+					verificationValues, 0, k);
+			histogramMax = resumed.histogramMax;
+			iterations = resumed.iterations;
+			reseedRounds = resumed.reseedRounds;
+			reseeded = resumed.reseeded;
+			testAfterCenter = resumed.testAfterCenter;
+			rnd = resumed.rnd;
+		} else {
+			seed(rnd);
+		}
+		resumedIterations = iterations;
+		long lastCheckpoint = System.currentTimeMillis();
+		float[] row = new float[dim];
+		while (newRandPos > 0) {
+			long start = System.nanoTime();
+			pass();
+			iterations++;
+
+			// set centroids with less than minCount point to a new random
+			// position
+			newRandPos = 0;
+			for (int c = 0; c < k && reseedRounds < maxReseedRounds; c++) {
+				if (counts[c] < minCount) {
+					newRandPos++;
+					file.read(rnd.nextInt(n), 1, row);
+					System.arraycopy(row, 0, centroids, c * dim, dim);
+				}
+			}
+			int moved = newRandPos;
+			if (newRandPos > 0) {
+				reseedRounds++;
+				reseeded += newRandPos;
+			}
+
+			// move centroid into the center
+			if (newRandPos == 0) {
+				for (int c = 0; c < k; c++)
+					center(c);
+
+				if (!testAfterCenter) {
+					testAfterCenter = true;
+					newRandPos++;
+				}
+			} else {
+				testAfterCenter = false;
+			}
+
+			if (listener != null) {
+				ClusteringListener.Iteration iteration = new ClusteringListener.Iteration();
+				iteration.number = iterations;
+				iteration.nanos = System.nanoTime() - start;
+				iteration.inertia = inertia;
+				iteration.reassigned = -1;
+				iteration.reseeded = moved;
+				iteration.points = n;
+				listener.iterationDone(iteration);
+			}
+
+			if (checkpoint != null
+					&& newRandPos > 0
+					&& System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+				writeCheckpoint(rnd, testAfterCenter);
+				lastCheckpoint = System.currentTimeMillis();
+			}
+		}
+		if (checkpoint != null)
+			checkpoint.delete();
+
+		return KMeans.words(centroids, verificationValues, k, dim);
+	}
+
+	/**
+	 * @return the state of the run this one continues, null if there is
+	 *         none
+	 */
+	private ClusteringCheckpoint resume() {
+		if (checkpoint == null)
+			return null;
+		return ClusteringCheckpoint.read(checkpoint, checkpoint(null, false));
+	}
+
+	/**
+	 * @return the current state, the identification only if rnd is null
+	 */
+	private ClusteringCheckpoint checkpoint(Random rnd,
+			boolean testAfterCenter) {
+		ClusteringCheckpoint c = new ClusteringCheckpoint();
+		if (fingerprint == null)
+			fingerprint = ClusteringCheckpoint.fingerprint(file);
+		c.fingerprint = fingerprint;
+		c.n = n;
+		c.k = k;
+		c.dimension = dim;
+		c.minCount = minCount;
+		c.seed = seed;
+		c.seeding = seeding;
+		if (rnd == null)
+			return c;
+		c.iterations = iterations;
+		c.reseedRounds = reseedRounds;
+		c.reseeded = reseeded;
+		c.testAfterCenter = testAfterCenter;
+		c.histogramMax = histogramMax;
+		c.centroids = centroids;
+		c.verificationValues = verificationValues;
+		c.reseededCentroids = new boolean[k];
+		c.rnd = rnd;
+		return c;
+	}
+
+	/**
+	 * Writes a checkpoint, a failure is reported but does not stop the
+	 * clustering
+	 */
+	private void writeCheckpoint(Random rnd, boolean testAfterCenter) {
+		try {
+			checkpoint(rnd, testAfterCenter).write(checkpoint);
+		} catch (IOException e) {
+			System.err.println("can not write checkpoint " + checkpoint + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Chooses the start centroids by the seeding of KMeans on a random
+	 * sample of the rows, the histograms end at twice the largest length of
+	 * a sample row
+	 */
+	private void seed(Random rnd) {
+		int m = Math.min(n, Math.max(k, SAMPLE_PER_CENTROID * k));
+		DescriptorMatrix sample = new DescriptorMatrix(dim, m);
+		float[] row = new float[dim];
+		float maxLength = 0;
+		for (int i = 0; i < m; i++) {
+			file.read(rnd.nextInt(n), 1, row);
+			sample.add(0, 0, 0, 0, row, 0);
+			float length = 0;
+			for (float v : row)
+				length += v * v;
+			maxLength = Math.max(maxLength, (float) Math.sqrt(length));
+		}
+		histogramMax = Math.max(2 * maxLength, Float.MIN_NORMAL);
+
+		KMeans kmeans = new KMeans(sample, k, minCount, rnd.nextLong(), pool);
+		kmeans.setSeeding(seeding);
+		centroids = kmeans.startCentroids();
+	}
+
+	/**
+	 * Streams all rows: assigns each to the nearest centroid, adds it to the
+	 * sums and its distance to the histogram of the centroid
+	 */
+	private void pass() {
+		KMeans.forEach(pool, slices, new KMeans.Task() {
+			public void run(int j) {
+				if (sliceCounts[j] == null) {
+					sliceCounts[j] = new int[k];
+					sliceSums[j] = new double[k * dim];
+					histograms[j] = new int[k * HISTOGRAM_BINS];
+				}
+				int[] count = sliceCounts[j];
+				double[] sums = sliceSums[j];
+				int[] histogram = histograms[j];
+				Arrays.fill(count, 0);
+				Arrays.fill(sums, 0.0);
+				Arrays.fill(histogram, 0);
+				double squares = 0;
+
+				float[] block = new float[BLOCK * dim];
+				int end = Math.min(n, (j + 1) * sliceSize);
+				for (int first = j * sliceSize; first < end; first += BLOCK) {
+					int rows = Math.min(BLOCK, end - first);
+					file.read(first, rows, block);
+					for (int r = 0; r < rows; r++) {
+						int p = r * dim;
+						float distance = 0;
+						int centerNr = 0;
+						for (int c = 0; c < k; c++) {
+							float d = KMeans.distance(block, p, centroids,
+									c * dim, dim);
+							if (c == 0 || d < distance) {
+								distance = d;
+								centerNr = c;
+							}
+						}
+
+						squares += distance * distance;
+						count[centerNr]++;
+						int s = centerNr * dim;
+						for (int d = 0; d < dim; d++)
+							sums[s + d] += block[p + d];
+						int bin = (int) (distance / histogramMax * HISTOGRAM_BINS);
+						histogram[centerNr * HISTOGRAM_BINS
+								+ Math.min(bin, HISTOGRAM_BINS - 1)]++;
+					}
+				}
+				sliceInertia[j] = squares;
+			}
+		});
+
+		Arrays.fill(counts, 0);
+		inertia = 0;
+		for (int j = 0; j < slices; j++) {
+			for (int c = 0; c < k; c++)
+				counts[c] += sliceCounts[j][c];
+			inertia += sliceInertia[j];
+		}
+	}
+
+	/**
+	 * Moves centroid c to the mean of its members of the last pass and sets
+	 * its verification value to the upper end of the histogram bin which
+	 * holds the member at PERCENT
+	 */
+	private void center(int c) {
+		int s = c * dim;
+		for (int d = 0; d < dim && counts[c] > 0; d++) {
+			double dx = 0;
+			for (int j = 0; j < slices; j++)
+				dx += sliceSums[j][s + d];
+			centroids[s + d] = (float) (dx / counts[c]);
+		}
+
+		int pos = (int) Math.ceil(counts[c] * PERCENT) - 1;
+		verificationValues[c] = 0;
+		int below = 0;
+		for (int b = 0; b < HISTOGRAM_BINS && pos >= 0; b++) {
+			for (int j = 0; j < slices; j++)
+				below += histograms[j][c * HISTOGRAM_BINS + b];
+			if (below > pos) {
+				verificationValues[c] = (b + 1) * histogramMax
+						/ HISTOGRAM_BINS;
+				break;
+			}
+		}
+	}
+}
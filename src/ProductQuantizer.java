@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Finds the nearest visual word of large vocabularies by product
+ * quantization (Jegou, Douze, Schmid: Product Quantization for Nearest
+ * Neighbor Search, 2011).
+ *
+ * The dimensions are split into subspaces, the parts of the word centroids
+ * in each subspace are clustered into at most 256 sub-centroids, and each
+ * word is stored as the byte codes of its nearest sub-centroids. A search
+ * computes a table of the squared distances of the query to all
+ * sub-centroids once (the asymmetric distance), then the estimated squared
+ * distance of each word is the sum of one table entry per subspace. The
+ * rerank words with the smallest estimates are compared by their exact
+ * distance, so the distance of the word found is exact and the
+ * verification value check of doClassifyVisualWord stays the same.
+ *
+ * The quantizer is immutable, search can be called by several threads at
+ * once.
+ */
+public class ProductQuantizer {
+
+	// maximum sub-centroids per subspace, so a code fits into a byte
+	private static final int MAX_SUB_CENTROIDS = 256;
+
+	// Lloyd iterations of the sub-centroids
+	private static final int ITERATIONS = 10;
+
+	private final float[] centroids;
+	private final int dim;
+	private final int k;
+
+	// subspace s covers the dimensions subStart[s] .. subStart[s + 1] - 1
+	private final int subspaces;
+	private final int[] subStart;
+
+	// sub-centroids per subspace, sub-centroid j of subspace s starts at
+	// subCentroids[s] + j * (subStart[s + 1] - subStart[s])
+	private final int subCentroids;
+	private final float[][] codebooks;
+
+	// code of word w in subspace s: codes[w * subspaces + s] & 0xFF
+	private final byte[] codes;
+
+	// the per thread search state
+	private final ThreadLocal<float[]> tables = new ThreadLocal<float[]>() {
+		protected float[] initialValue() {
+			return new float[subspaces * subCentroids];
+		}
+	};
+
+	/**
+	 * Learns the codebooks and encodes the words
+	 *
+	 * @param centroids
+	 *            the words, word w starts at w * dim
+	 * @param subspaces
+	 *            number of subspaces, at most dim
+	 */
+	public ProductQuantizer(float[] centroids, int dim, int subspaces,
+			long seed) {
+		this.centroids = centroids;
+		this.dim = dim;
+		this.k = centroids.length / dim;
+		this.subspaces = Math.max(1, Math.min(subspaces, dim));
+		subStart = new int[this.subspaces + 1];
+		for (int s = 0; s <= this.subspaces; s++)
+			subStart[s] = s * dim / this.subspaces;
+		subCentroids = Math.max(1, Math.min(MAX_SUB_CENTROIDS, k));
+
+		Random rnd = new Random(seed);
+		codebooks = new float[this.subspaces][];
+		codes = new byte[k * this.subspaces];
+		for (int s = 0; s < this.subspaces; s++)
+			train(s, rnd);
+	}
+
+	/**
+	 * Clusters the parts of the words in subspace s by Lloyd's algorithm,
+	 * starting with random words, and stores the codes of the words
+	 */
+	private void train(int s, Random rnd) {
+		int from = subStart[s];
+		int len = subStart[s + 1] - from;
+		float[] codebook = new float[subCentroids * len];
+		codebooks[s] = codebook;
+
+		// random distinct words as start points
+		int[] order = new int[k];
+		for (int w = 0; w < k; w++)
+			order[w] = w;
+		for (int j = 0; j < subCentroids; j++) {
+			int r = j + rnd.nextInt(k - j);
+			int t = order[j];
+			order[j] = order[r];
+			order[r] = t;
+			System.arraycopy(centroids, order[j] * dim + from, codebook, j
+					* len, len);
+		}
+
+		int[] assignment = new int[k];
+		Arrays.fill(assignment, -1);
+		double[] sums = new double[subCentroids * len];
+		int[] counts = new int[subCentroids];
+		for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+			boolean changed = false;
+			for (int w = 0; w < k; w++) {
+				int nearest = nearest(codebook, len, w * dim + from);
+				if (nearest != assignment[w]) {
+					assignment[w] = nearest;
+					changed = true;
+				}
+			}
+			if (!changed)
+				break;
+
+			// move each sub-centroid to the mean of its words, an empty one
+			// stays where it is
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+			for (int w = 0; w < k; w++) {
+				int j = assignment[w];
+				counts[j]++;
+				for (int d = 0; d < len; d++)
+					sums[j * len + d] += centroids[w * dim + from + d];
+			}
+			for (int j = 0; j < subCentroids; j++)
+				for (int d = 0; d < len && counts[j] > 0; d++)
+					codebook[j * len + d] = (float) (sums[j * len + d] / counts[j]);
+		}
+
+		for (int w = 0; w < k; w++)
+			codes[w * subspaces + s] = (byte) nearest(codebook, len, w * dim
+					+ from);
+	}
+
+	/**
+	 * @return the sub-centroid of codebook nearest to centroids[p .. p +
+	 *         len - 1]
+	 */
+	private int nearest(float[] codebook, int len, int p) {
+		int best = 0;
+		float shortest = Float.MAX_VALUE;
+		for (int j = 0; j < subCentroids; j++) {
+			float d2 = 0;
+			for (int d = 0; d < len; d++) {
+				float x = centroids[p + d] - codebook[j * len + d];
+				d2 += x * x;
+			}
+			if (d2 < shortest) {
+				shortest = d2;
+				best = j;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Searches the nearest word of row i of a DescriptorMatrix
+	 *
+	 * @param rerank
+	 *            number of words with the smallest estimated distance which
+	 *            are compared by their exact distance
+	 * @param distance
+	 *            distance[0] is set to the exact distance to the word found
+	 * @return the index of the word found, -1 if there are none
+	 */
+	public int search(DescriptorMatrix m, int i, int rerank, float[] distance) {
+		if (k == 0)
+			return -1;
+		float[] q = m.descriptors;
+		int p = m.offset(i);
+
+		// squared distances of the query to all sub-centroids
+		float[] table = tables.get();
+		for (int s = 0; s < subspaces; s++) {
+			int from = subStart[s];
+			int len = subStart[s + 1] - from;
+			float[] codebook = codebooks[s];
+			for (int j = 0; j < subCentroids; j++) {
+				float d2 = 0;
+				for (int d = 0; d < len; d++) {
+					float x = q[p + from + d] - codebook[j * len + d];
+					d2 += x * x;
+				}
+				table[s * subCentroids + j] = d2;
+			}
+		}
+
+		// the rerank smallest estimates, sorted ascending
+		int candidates = Math.max(1, Math.min(rerank, k));
+		float[] estimates = new float[candidates];
+		int[] words = new int[candidates];
+		Arrays.fill(estimates, Float.MAX_VALUE);
+		int found = 0;
+		for (int w = 0; w < k; w++) {
+			int c = w * subspaces;
+			float estimate = 0;
+			for (int s = 0; s < subspaces; s++)
+				estimate += table[s * subCentroids + (codes[c + s] & 0xFF)];
+			if (found == candidates && estimate >= estimates[candidates - 1])
+				continue;
+			int j = found < candidates ? found++ : candidates - 1;
+			while (j > 0 && estimates[j - 1] > estimate) {
+				estimates[j] = estimates[j - 1];
+				words[j] = words[j - 1];
+				j--;
+			}
+			estimates[j] = estimate;
+			words[j] = w;
+		}
+
+		// exact distances, on a tie the lower word like the linear scan
+		int best = -1;
+		float shortest = Float.MAX_VALUE;
+		for (int j = 0; j < found; j++) {
+			float d = m.distance(i, centroids, words[j] * dim);
+			if (best < 0 || d < shortest || d == shortest && words[j] < best) {
+				best = words[j];
+				shortest = d;
+			}
+		}
+		distance[0] = shortest;
+		return best;
+	}
+
+	/**
+	 * @return the number of words
+	 */
+	public int size() {
+		return k;
+	}
+}
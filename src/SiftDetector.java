@@ -0,0 +1,772 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+
+import mpi.cbg.fly.Feature;
+import mpi.cbg.fly.Filter;
+import mpi.cbg.fly.FloatArray2D;
+
+/**
+ * A SIFT detector computing the same features as FloatArray2DSIFT of
+ * Java_SIFT.jar: the same scale space, the same DoG extremum localization
+ * and the same orientation and descriptor histograms, in the same order.
+ *
+ * Unlike the jar it keeps the pyramid buffers of all octaves and reuses
+ * them for the next image of the same or a smaller size, and it runs the
+ * blurring, the extremum detection, the gradients and the descriptors of
+ * all octaves and scale levels in parallel on a ForkJoinPool.
+ *
+ * An instance must not be shared between threads, give each worker its
+ * own detector (they may share the pool).
+ */
+public class SiftDetector {
+
+	private static final float MIN_CONTRAST = 0.025f;
+	private static final float MAX_CURVATURE_RATIO = 12.1f; // (10 + 1)^2 / 10
+
+	private static final int ORIENTATION_BINS = 36;
+	private static final float ORIENTATION_BIN_SIZE = 2.0f * (float) Math.PI
+			/ ORIENTATION_BINS;
+
+	// rows per parallel task of the per-pixel loops
+	private static final int BAND_ROWS = 64;
+
+	// candidates per parallel task of the descriptor computation
+	private static final int CANDIDATE_CHUNK = 32;
+
+	private final int fdsize;
+	private final int fdwidth;
+	private final int fdbins;
+	private final float fdbinSize;
+	private final float[][] descriptorMask;
+
+	// null runs everything in the calling thread
+	private final ForkJoinPool pool;
+
+	// scale space of the last init call, rebuilt when the parameters change
+	private int steps;
+	private float initialSigma;
+	private float[] sigma;
+	private float[][] kernelDiff;
+	private float kMin1Inv;
+
+	// octaves of the current image, the buffers survive for the next image
+	private final List<Octave> octaves = new ArrayList<Octave>();
+	private int octaveCount;
+
+	private static class Octave {
+		int width;
+		int height;
+
+		// blurred levels (steps + 3) and their differences (steps + 2), l[0]
+		// of the first octave is the input image itself
+		float[][] l;
+		float[][] d;
+
+		// gradient magnitude and direction of a level, computed on demand
+		float[][] magnitude;
+		float[][] direction;
+		boolean[] hasGradients;
+
+		void resize(int width, int height, int steps) {
+			this.width = width;
+			this.height = height;
+			if (l == null || l.length != steps + 3) {
+				l = new float[steps + 3][];
+				d = new float[steps + 2][];
+				magnitude = new float[steps + 3][];
+				direction = new float[steps + 3][];
+				hasGradients = new boolean[steps + 3];
+			}
+			for (int i = 1; i < l.length; i++)
+				l[i] = buffer(l[i], width * height);
+			for (int i = 0; i < d.length; i++)
+				d[i] = buffer(d[i], width * height);
+			Arrays.fill(hasGradients, false);
+		}
+	}
+
+	// a DoG extremum: sub pixel location, scale level and its octave
+	private static class Candidate {
+		final int octave;
+		final float x;
+		final float y;
+		final float s;
+
+		Candidate(int octave, float x, float y, float s) {
+			this.octave = octave;
+			this.x = x;
+			this.y = y;
+			this.s = s;
+		}
+	}
+
+	public SiftDetector(int fdsize, int fdbins, ForkJoinPool pool) {
+		this.fdsize = fdsize;
+		this.fdwidth = 4 * fdsize;
+		this.fdbins = fdbins;
+		this.fdbinSize = 2.0f * (float) Math.PI / fdbins;
+		this.pool = pool;
+
+		// gaussian weights of the descriptor window, sigma = half its width
+		descriptorMask = new float[fdwidth][fdwidth];
+		float two_sq_sigma = fdsize * fdsize * 8;
+		for (int y = fdsize * 2 - 1; y >= 0; --y) {
+			float fy = y + 0.5f;
+			for (int x = fdsize * 2 - 1; x >= 0; --x) {
+				float fx = x + 0.5f;
+				float val = (float) Math.exp(-(fy * fy + fx * fx) / two_sq_sigma);
+				descriptorMask[2 * fdsize - 1 - y][2 * fdsize - 1 - x] = val;
+				descriptorMask[2 * fdsize + y][2 * fdsize - 1 - x] = val;
+				descriptorMask[2 * fdsize - 1 - y][2 * fdsize + x] = val;
+				descriptorMask[2 * fdsize + y][2 * fdsize + x] = val;
+			}
+		}
+	}
+
+	/**
+	 * Builds the octave stubs of an image, see FloatArray2DSIFT.init
+	 *
+	 * @param img
+	 *            the enhanced and smoothed image, it becomes the first
+	 *            level of the first octave and must not be changed until
+	 *            run returns
+	 */
+	public void init(FloatArray2D img, int steps, float initial_sigma,
+			int min_size, int max_size) {
+		if (sigma == null || this.steps != steps
+				|| this.initialSigma != initial_sigma)
+			initScaleSpace(steps, initial_sigma);
+
+		// the number of octaves, estimated like the jar does
+		octaveCount = 0;
+		float w = img.width;
+		float h = img.height;
+		while (w > min_size && h > min_size) {
+			w /= 2;
+			h /= 2;
+			++octaveCount;
+		}
+		while (octaves.size() < octaveCount)
+			octaves.add(new Octave());
+
+		// the blurred level steps of each octave is downsampled to the
+		// first level of the next one, this chain is inherently sequential
+		int width = img.width;
+		int height = img.height;
+		for (int o = 0; o < octaveCount; o++) {
+			Octave octave = octaves.get(o);
+			octave.resize(width, height, steps);
+			if (o == 0)
+				octave.l[0] = img.data;
+			else
+				downsample(octaves.get(o - 1), octave.l[0] = buffer(
+						octave.l[0], width * height), width, height);
+			// d[0] is free until the differences are computed
+			blur(octave.l[0], width, height, kernelDiff[steps], octave.d[0],
+					octave.l[steps]);
+			width = width / 2 + width % 2;
+			height = height / 2 + height % 2;
+		}
+	}
+
+	private void initScaleSpace(int steps, float initial_sigma) {
+		this.steps = steps;
+		this.initialSigma = initial_sigma;
+		sigma = new float[steps + 3];
+		sigma[0] = initial_sigma;
+		kernelDiff = new float[steps + 3][];
+		for (int i = 1; i < steps + 3; ++i) {
+			sigma[i] = initial_sigma
+					* (float) Math.pow(2.0f, (float) i / (float) steps);
+			float sigma_diff = (float) Math.sqrt(sigma[i] * sigma[i]
+					- initial_sigma * initial_sigma);
+			kernelDiff[i] = Filter.createGaussianKernel1D(sigma_diff, true);
+		}
+		float k = (float) Math.pow(2.0, 1.0 / (float) steps);
+		kMin1Inv = 1.0f / (k - 1.0f);
+	}
+
+	/**
+	 * Detects the features of all octaves not larger than max_size, see
+	 * FloatArray2DSIFT.run(int)
+	 */
+	public Vector<Feature> run(int max_size) {
+		final List<Octave> active = new ArrayList<Octave>();
+		for (int o = 0; o < octaveCount; o++) {
+			Octave octave = octaves.get(o);
+			if (octave.width <= max_size && octave.height <= max_size)
+				active.add(octave);
+		}
+		final int first = octaveCount - active.size();
+
+		// the remaining levels of each octave
+		final List<int[]> levels = new ArrayList<int[]>();
+		for (int o = 0; o < active.size(); o++)
+			for (int i = 1; i < steps + 3; i++)
+				if (i != steps)
+					levels.add(new int[] { o, i });
+		KMeans.forEach(pool, levels.size(), new KMeans.Task() {
+			public void run(int t) {
+				Octave octave = active.get(levels.get(t)[0]);
+				int i = levels.get(t)[1];
+				// d[i - 1] is free until the differences are computed
+				blur(octave.l[0], octave.width, octave.height, kernelDiff[i],
+						octave.d[i - 1], octave.l[i]);
+			}
+		});
+
+		// the difference of gaussian levels, in bands of rows
+		final List<int[]> differences = bands(active, steps + 2);
+		KMeans.forEach(pool, differences.size(), new KMeans.Task() {
+			public void run(int t) {
+				int[] band = differences.get(t);
+				Octave octave = active.get(band[0]);
+				float[] d = octave.d[band[1]];
+				float[] l0 = octave.l[band[1]];
+				float[] l1 = octave.l[band[1] + 1];
+				for (int p = band[2] * octave.width; p < band[3]
+						* octave.width; p++)
+					d[p] = (l1[p] - l0[p]) * kMin1Inv;
+			}
+		});
+
+		// extrema of the inner difference levels, in the jar's order: octaves
+		// ascending, levels, rows and columns descending
+		final List<int[]> scans = new ArrayList<int[]>();
+		for (int o = 0; o < active.size(); o++) {
+			Octave octave = active.get(o);
+			for (int i = steps; i >= 1; --i)
+				for (int to = octave.height - 1; to > 1; to -= BAND_ROWS)
+					scans.add(new int[] { o, i, Math.max(1, to - BAND_ROWS),
+							to });
+		}
+		final List<List<Candidate>> found = new ArrayList<List<Candidate>>();
+		for (int t = 0; t < scans.size(); t++)
+			found.add(null);
+		KMeans.forEach(pool, scans.size(), new KMeans.Task() {
+			public void run(int t) {
+				int[] scan = scans.get(t);
+				found.set(t, detect(scan[0], active.get(scan[0]), scan[1],
+						scan[2], scan[3]));
+			}
+		});
+		final List<Candidate> candidates = new ArrayList<Candidate>();
+		for (List<Candidate> c : found)
+			candidates.addAll(c);
+
+		// gradients of the levels that have candidates
+		final List<int[]> gradients = new ArrayList<int[]>();
+		for (Candidate c : candidates) {
+			Octave octave = active.get(c.octave);
+			int level = Math.round(c.s);
+			if (!octave.hasGradients[level]) {
+				octave.hasGradients[level] = true;
+				octave.magnitude[level] = buffer(octave.magnitude[level],
+						octave.width * octave.height);
+				octave.direction[level] = buffer(octave.direction[level],
+						octave.width * octave.height);
+				for (int from = 0; from < octave.height; from += BAND_ROWS)
+					gradients.add(new int[] { c.octave, level, from,
+							Math.min(octave.height, from + BAND_ROWS) });
+			}
+		}
+		KMeans.forEach(pool, gradients.size(), new KMeans.Task() {
+			public void run(int t) {
+				int[] band = gradients.get(t);
+				gradients(active.get(band[0]), band[1], band[2], band[3]);
+			}
+		});
+
+		// orientations and descriptors, the features keep candidate order
+		final int chunks = (candidates.size() + CANDIDATE_CHUNK - 1)
+				/ CANDIDATE_CHUNK;
+		final List<List<Feature>> described = new ArrayList<List<Feature>>();
+		for (int t = 0; t < chunks; t++)
+			described.add(null);
+		KMeans.forEach(pool, chunks, new KMeans.Task() {
+			public void run(int t) {
+				List<Feature> features = new ArrayList<Feature>();
+				int end = Math.min(candidates.size(), (t + 1) * CANDIDATE_CHUNK);
+				for (int c = t * CANDIDATE_CHUNK; c < end; c++) {
+					Candidate candidate = candidates.get(c);
+					processCandidate(candidate, first + candidate.octave,
+							active.get(candidate.octave), features);
+				}
+				described.set(t, features);
+			}
+		});
+
+		Vector<Feature> features = new Vector<Feature>();
+		for (List<Feature> f : described)
+			features.addAll(f);
+		return features;
+	}
+
+	/**
+	 * Splits levels 0 .. count-1 of all octaves into bands of rows
+	 * {octave, level, from, to}
+	 */
+	private static List<int[]> bands(List<Octave> octaves, int count) {
+		List<int[]> bands = new ArrayList<int[]>();
+		for (int o = 0; o < octaves.size(); o++)
+			for (int i = 0; i < count; i++)
+				for (int from = 0; from < octaves.get(o).height; from += BAND_ROWS)
+					bands.add(new int[] { o, i, from,
+							Math.min(octaves.get(o).height, from + BAND_ROWS) });
+		return bands;
+	}
+
+	/**
+	 * @return buffer if it holds at least size values, otherwise a new array
+	 */
+	private static float[] buffer(float[] buffer, int size) {
+		return buffer != null && buffer.length >= size ? buffer
+				: new float[size];
+	}
+
+	/**
+	 * Every second pixel of the level steps of the previous octave, see
+	 * FloatArray2DScaleOctave.downsample
+	 */
+	private void downsample(Octave previous, float[] dst, int width,
+			int height) {
+		float[] src = previous.l[steps];
+		int src_width = previous.width;
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				dst[y * width + x] = src[2 * y * src_width + 2 * x];
+	}
+
+	/**
+	 * Separable convolution with mirrored borders, gives the same values as
+	 * Filter.convolveSeparable(src, kernel, kernel) but writes into dst
+	 *
+	 * @param tmp
+	 *            buffer for the horizontal pass
+	 */
+	private void blur(final float[] src, final int width, final int height,
+			final float[] kernel, final float[] tmp, final float[] dst) {
+		if (width < kernel.length || height < kernel.length) {
+			// tiny levels, the border tables of the jar overlap
+			FloatArray2D in = new FloatArray2D(width, height);
+			System.arraycopy(src, 0, in.data, 0, width * height);
+			FloatArray2D out = Filter.convolveSeparable(in, kernel, kernel);
+			System.arraycopy(out.data, 0, dst, 0, width * height);
+			return;
+		}
+
+		int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+		KMeans.forEach(pool, bands, new KMeans.Task() {
+			public void run(int b) {
+				FastFilter.convolveRows(src, width, kernel, tmp, b * BAND_ROWS,
+						Math.min(height, (b + 1) * BAND_ROWS));
+			}
+		});
+		KMeans.forEach(pool, bands, new KMeans.Task() {
+			public void run(int b) {
+				FastFilter.convolveColumns(tmp, width, height, kernel, dst, b
+						* BAND_ROWS, Math.min(height, (b + 1) * BAND_ROWS));
+			}
+		});
+	}
+
+	/**
+	 * Gradient magnitude and direction of rows from .. to-1 of a level, see
+	 * Filter.createGradients
+	 */
+	private static void gradients(Octave octave, int level, int from, int to) {
+		int width = octave.width;
+		float[] src = octave.l[level];
+		float[] magnitude = octave.magnitude[level];
+		float[] direction = octave.direction[level];
+		for (int y = from; y < to; ++y) {
+			int ra = width * Math.max(0, y - 1);
+			int r = width * y;
+			int rb = width * Math.min(y + 1, octave.height - 1);
+			for (int x = 0; x < width; ++x) {
+				float der_x = (src[r + Math.min(x + 1, width - 1)] - src[r
+						+ Math.max(0, x - 1)]) / 2;
+				float der_y = (src[rb + x] - src[ra + x]) / 2;
+				magnitude[r + x] = (float) Math.sqrt((double) der_x * der_x
+						+ (double) der_y * der_y);
+				direction[r + x] = (float) Math.atan2(der_y, der_x);
+			}
+		}
+	}
+
+	/**
+	 * Finds the DoG extrema of level i in rows from .. to-1, localizes them
+	 * with sub pixel accuracy and rejects those with low contrast or on
+	 * edges, see FloatArray2DScaleOctaveDoGDetector
+	 */
+	private List<Candidate> detect(int o, Octave octave, int i, int from,
+			int to) {
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		float[][] d = octave.d;
+		int w = octave.width;
+		int h = octave.height;
+		float[] H = new float[6];
+
+		for (int y = to - 1; y >= from; --y) {
+			X: for (int x = w - 2; x >= 1; --x) {
+				if (!isExtremum(d, i, y * w + x, w))
+					continue;
+
+				// try to localize it with sub pixel accuracy, if it has to
+				// be moved by more than 0.5 in some direction, try it again
+				// there, at most 5 times
+				int xi = x;
+				int yi = y;
+				int ii = i;
+				boolean isLocalized = false;
+				boolean isLocalizable = true;
+				float od = Float.MAX_VALUE;
+				float fx = 0, fy = 0, fi = 0;
+				float e111, dx, dy, di, ox, oy, oi;
+				int t = 5;
+				do {
+					--t;
+					float[] a = d[ii - 1];
+					float[] b = d[ii];
+					float[] c = d[ii + 1];
+					int p = yi * w + xi;
+
+					e111 = b[p];
+					dx = (b[p + 1] - b[p - 1]) / 2;
+					dy = (b[p + w] - b[p - w]) / 2;
+					di = (c[p] - a[p]) / 2;
+
+					float e111_2 = 2 * e111;
+					H[0] = b[p - 1] - e111_2 + b[p + 1]; // dxx
+					H[1] = b[p - w] - e111_2 + b[p + w]; // dyy
+					H[2] = a[p] - e111_2 + c[p]; // dii
+					H[3] = (b[p + w + 1] - b[p + w - 1] - b[p - w + 1] + b[p
+							- w - 1]) / 4; // dxy
+					H[4] = (c[p + 1] - c[p - 1] - a[p + 1] + a[p - 1]) / 4; // dxi
+					H[5] = (c[p + w] - c[p - w] - a[p + w] + a[p - w]) / 4; // dyi
+
+					double[][] h_inv = invert(H);
+					if (h_inv == null)
+						continue X;
+
+					// the jar weighs di with the first column of the
+					// inverse, kept for identical keypoints
+					ox = -(float) h_inv[0][0] * dx - (float) h_inv[0][1] * dy
+							- (float) h_inv[0][0] * di;
+					oy = -(float) h_inv[1][0] * dx - (float) h_inv[1][1] * dy
+							- (float) h_inv[1][0] * di;
+					oi = -(float) h_inv[2][0] * dx - (float) h_inv[2][1] * dy
+							- (float) h_inv[2][0] * di;
+
+					float odc = ox * ox + oy * oy + oi * oi;
+					if (odc < 2.0f) {
+						if ((Math.abs(ox) > 0.5 || Math.abs(oy) > 0.5 || Math
+								.abs(oi) > 0.5) && odc < od) {
+							od = odc;
+							xi = Math.round(xi + ox);
+							yi = Math.round(yi + oy);
+							ii = Math.round(ii + oi);
+							if (xi < 1 || yi < 1 || ii < 1 || xi > w - 2
+									|| yi > h - 2 || ii > d.length - 2)
+								isLocalizable = false;
+						} else {
+							fx = xi + ox;
+							fy = yi + oy;
+							fi = ii + oi;
+							if (fx < 0 || fy < 0 || fi < 0 || fx > w - 1
+									|| fy > h - 1 || fi > d.length - 1)
+								isLocalizable = false;
+							else
+								isLocalized = true;
+						}
+					} else
+						isLocalizable = false;
+				} while (!isLocalized && isLocalizable && t >= 0);
+				if (!isLocalized)
+					continue;
+
+				if (Math.abs(e111 + 0.5f * (dx * ox + dy * oy + di * oi)) < MIN_CONTRAST)
+					continue;
+
+				// edge responses have a large principal curvature ratio
+				float det = H[0] * H[1] - H[3] * H[3];
+				float trace = H[0] + H[1];
+				if (trace * trace / det > MAX_CURVATURE_RATIO)
+					continue;
+
+				candidates.add(new Candidate(o, fx, fy, fi));
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return true if d[i][p] is larger or smaller than all its 26 neighbours
+	 */
+	private static boolean isExtremum(float[][] d, int i, int p, int w) {
+		float e = d[i][p];
+		float n = d[i][p - 1];
+		if (n < e)
+			return isMaximum(d, i, p, w, e);
+		if (n > e)
+			return isMinimum(d, i, p, w, e);
+		return false;
+	}
+
+	private static boolean isMaximum(float[][] d, int i, int p, int w, float e) {
+		float[] b = d[i];
+		if (b[p + 1] >= e || b[p - w] >= e || b[p + w] >= e
+				|| b[p - w - 1] >= e || b[p - w + 1] >= e
+				|| b[p + w - 1] >= e || b[p + w + 1] >= e)
+			return false;
+		for (int l = i - 1; l <= i + 1; l += 2) {
+			float[] level = d[l];
+			for (int r = p - w; r <= p + w; r += w)
+				if (level[r - 1] >= e || level[r] >= e || level[r + 1] >= e)
+					return false;
+		}
+		return true;
+	}
+
+	private static boolean isMinimum(float[][] d, int i, int p, int w, float e) {
+		float[] b = d[i];
+		if (b[p + 1] <= e || b[p - w] <= e || b[p + w] <= e
+				|| b[p - w - 1] <= e || b[p - w + 1] <= e
+				|| b[p + w - 1] <= e || b[p + w + 1] <= e)
+			return false;
+		for (int l = i - 1; l <= i + 1; l += 2) {
+			float[] level = d[l];
+			for (int r = p - w; r <= p + w; r += w)
+				if (level[r - 1] <= e || level[r] <= e || level[r + 1] <= e)
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Inverts the symmetric hessian {dxx, dyy, dii, dxy, dxi, dyi} by LU
+	 * decomposition with partial pivoting, computed like Jama's
+	 * Matrix.inverse
+	 *
+	 * @return the inverse or null if the hessian is singular
+	 */
+	private static double[][] invert(float[] H) {
+		double[][] lu = { { H[0], H[3], H[4] }, { H[3], H[1], H[5] },
+				{ H[4], H[5], H[2] } };
+		int[] piv = { 0, 1, 2 };
+		double[] col = new double[3];
+		for (int j = 0; j < 3; j++) {
+			for (int i = 0; i < 3; i++)
+				col[i] = lu[i][j];
+			for (int i = 0; i < 3; i++) {
+				double[] row = lu[i];
+				int kmax = Math.min(i, j);
+				double s = 0.0;
+				for (int k = 0; k < kmax; k++)
+					s += row[k] * col[k];
+				row[j] = col[i] -= s;
+			}
+			int p = j;
+			for (int i = j + 1; i < 3; i++)
+				if (Math.abs(col[i]) > Math.abs(col[p]))
+					p = i;
+			if (p != j) {
+				double[] row = lu[p];
+				lu[p] = lu[j];
+				lu[j] = row;
+				int k = piv[p];
+				piv[p] = piv[j];
+				piv[j] = k;
+			}
+			if (lu[j][j] != 0.0)
+				for (int i = j + 1; i < 3; i++)
+					lu[i][j] /= lu[j][j];
+		}
+		for (int j = 0; j < 3; j++)
+			if (lu[j][j] == 0)
+				return null;
+
+		// solve L * U * X = P * I
+		double[][] x = new double[3][3];
+		for (int i = 0; i < 3; i++)
+			x[i][piv[i]] = 1.0;
+		for (int k = 0; k < 3; k++)
+			for (int i = k + 1; i < 3; i++)
+				for (int j = 0; j < 3; j++)
+					x[i][j] -= x[k][j] * lu[i][k];
+		for (int k = 2; k >= 0; k--) {
+			for (int j = 0; j < 3; j++)
+				x[k][j] /= lu[k][k];
+			for (int i = 0; i < k; i++)
+				for (int j = 0; j < 3; j++)
+					x[i][j] -= x[k][j] * lu[i][k];
+		}
+		return x;
+	}
+
+	/**
+	 * Assigns the dominant orientations to a candidate and adds a feature
+	 * for each of them, see FloatArray2DSIFT.processCandidate
+	 *
+	 * @param o
+	 *            the octave index within all octaves of the image
+	 */
+	private void processCandidate(Candidate c, int o, Octave octave,
+			List<Feature> features) {
+		float[] histogram_bins = new float[ORIENTATION_BINS];
+		int scale = (int) Math.pow(2, o);
+		float octave_sigma = sigma[0]
+				* (float) Math.pow(2.0f, c.s / (float) steps);
+
+		// a circular gaussian window with sigma 1.5 times that of the feature
+		FloatArray2D gaussianMask = Filter.create_gaussian_kernel_2D_offset(
+				octave_sigma * 1.5f, c.x - (float) Math.floor(c.x), c.y
+						- (float) Math.floor(c.y), false);
+
+		// the masked gradients around the location, clamped at the border,
+		// accumulated into an orientation histogram
+		int level = Math.round(c.s);
+		float[] magnitude = octave.magnitude[level];
+		float[] direction = octave.direction[level];
+		int size = gaussianMask.width;
+		int half_size = size / 2;
+		for (int yi = 0; yi < size; ++yi) {
+			int ra_y = octave.width
+					* Math.max(0, Math.min(octave.height - 1, (int) c.y + yi
+							- half_size));
+			int ra_x = ra_y + Math.min((int) c.x, octave.width - 1);
+			for (int xi = 0; xi < size; ++xi) {
+				int pt = Math.max(ra_y, Math.min(ra_y + octave.width - 2, ra_x
+						+ xi - half_size));
+				float m = magnitude[pt] * gaussianMask.data[yi * size + xi];
+				// a direction of exactly pi would index past the last bin
+				int bin = Math.min(ORIENTATION_BINS - 1, Math.max(0,
+						(int) ((direction[pt] + Math.PI) / ORIENTATION_BIN_SIZE)));
+				histogram_bins[bin] += m;
+			}
+		}
+
+		// find the dominant orientation and interpolate it with respect to
+		// its two neighbours
+		int max_i = 0;
+		for (int i = 0; i < ORIENTATION_BINS; ++i)
+			if (histogram_bins[i] > histogram_bins[max_i])
+				max_i = i;
+
+		float e0 = histogram_bins[(max_i + ORIENTATION_BINS - 1)
+				% ORIENTATION_BINS];
+		float e1 = histogram_bins[max_i];
+		float e2 = histogram_bins[(max_i + 1) % ORIENTATION_BINS];
+		float offset = (e0 - e2) / 2.0f / (e0 - 2.0f * e1 + e2);
+		float orientation = (max_i + offset) * ORIENTATION_BIN_SIZE
+				- (float) Math.PI;
+
+		features.add(new Feature(octave_sigma * scale, orientation,
+				new float[] { c.x * scale, c.y * scale }, createDescriptor(c,
+						octave, octave_sigma, orientation)));
+
+		// duplicate the feature for each other significant orientation
+		// (> 80% of the maximum)
+		for (int i = 0; i < ORIENTATION_BINS; ++i) {
+			if (i != max_i && (max_i + 1) % ORIENTATION_BINS != i
+					&& (max_i - 1 + ORIENTATION_BINS) % ORIENTATION_BINS != i
+					&& histogram_bins[i] > 0.8 * histogram_bins[max_i]) {
+				e0 = histogram_bins[(i + ORIENTATION_BINS - 1)
+						% ORIENTATION_BINS];
+				e1 = histogram_bins[i];
+				e2 = histogram_bins[(i + 1) % ORIENTATION_BINS];
+				if (e0 < e1 && e2 < e1) {
+					offset = (e0 - e2) / 2.0f / (e0 - 2.0f * e1 + e2);
+					orientation = (i + 0.5f + offset) * ORIENTATION_BIN_SIZE
+							- (float) Math.PI;
+					features.add(new Feature(octave_sigma * scale,
+							orientation, new float[] { c.x * scale,
+									c.y * scale }, createDescriptor(c, octave,
+									octave_sigma, orientation)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The gradient orientation histograms of fdsize x fdsize sub regions
+	 * around a rotated candidate, see FloatArray2DSIFT.createDescriptor
+	 */
+	private float[] createDescriptor(Candidate c, Octave octave,
+			float octave_sigma, float orientation) {
+		int level = Math.round(c.s);
+		float[] magnitude = octave.magnitude[level];
+		float[] direction = octave.direction[level];
+		float[] region_m = new float[fdwidth * fdwidth];
+		float[] region_d = new float[fdwidth * fdwidth];
+
+		float cos_o = (float) Math.cos(orientation);
+		float sin_o = (float) Math.sin(orientation);
+
+		// sample the rotated and scaled region around the keypoint
+		for (int y = fdwidth - 1; y >= 0; --y) {
+			float ys = (y - 2.0f * fdsize + 0.5f) * octave_sigma;
+			for (int x = fdwidth - 1; x >= 0; --x) {
+				float xs = (x - 2.0f * fdsize + 0.5f) * octave_sigma;
+				float yr = cos_o * ys + sin_o * xs;
+				float xr = cos_o * xs - sin_o * ys;
+				int yg = Filter.flipInRange(Math.round(yr + c.y),
+						octave.height);
+				int xg = Filter.flipInRange(Math.round(xr + c.x), octave.width);
+				int region_p = fdwidth * y + x;
+				int gradient_p = octave.width * yg + xg;
+				region_m[region_p] = magnitude[gradient_p]
+						* descriptorMask[y][x];
+				region_d[region_p] = direction[gradient_p] - orientation;
+			}
+		}
+
+		// orientation histograms of the sub regions, linearly interpolated
+		// between the two nearest bins
+		float[][][] hist = new float[fdsize][fdsize][fdbins];
+		for (int y = fdsize - 1; y >= 0; --y) {
+			int yp = fdsize * 16 * y;
+			for (int x = fdsize - 1; x >= 0; --x) {
+				int xp = 4 * x;
+				for (int ysr = 3; ysr >= 0; --ysr) {
+					int ysrp = 4 * fdsize * ysr;
+					for (int xsr = 3; xsr >= 0; --xsr) {
+						int p = yp + xp + ysrp + xsr;
+						float bin_location = (region_d[p] + (float) Math.PI)
+								/ fdbinSize;
+						int bin_b = (int) bin_location;
+						int bin_t = bin_b + 1;
+						float d = bin_location - bin_b;
+						bin_b = (bin_b + 2 * fdbins) % fdbins;
+						bin_t = (bin_t + 2 * fdbins) % fdbins;
+						float t = region_m[p];
+						hist[y][x][bin_b] += t * (1 - d);
+						hist[y][x][bin_t] += t * d;
+					}
+				}
+			}
+		}
+
+		// normalize, cut above 0.2
+		float[] desc = new float[fdsize * fdsize * fdbins];
+		float max_bin_value = 0;
+		int i = 0;
+		for (int y = fdsize - 1; y >= 0; --y) {
+			for (int x = fdsize - 1; x >= 0; --x) {
+				for (int b = fdbins - 1; b >= 0; --b) {
+					desc[i] = hist[y][x][b];
+					if (desc[i] > max_bin_value)
+						max_bin_value = desc[i];
+					++i;
+				}
+			}
+		}
+		max_bin_value /= 0.2;
+		for (i = 0; i < desc.length; ++i)
+			desc[i] = (float) Math.min(1.0, desc[i] / max_bin_value);
+		return desc;
+	}
+}
@@ -1,5 +1,3 @@
-import java.util.List;
-
 import mpi.cbg.fly.Feature;
 
 
@@ -13,8 +11,5 @@ public class VisualWord {
 	
 	//a placeholder for a class verification value
 	public Object verificationValue;		
-	
-	//list of near features to a centeroid
-	public List<Feature> nearFeature;
 
 }
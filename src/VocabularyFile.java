@@ -0,0 +1,151 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * The learned visual words in a binary file, so a new process can classify
+ * features without extracting and clustering the training set again. The
+ * file is opened by memory mapping, the centroids are one contiguous float
+ * block which is copied out in one go.
+ *
+ * A vocabulary learned as a VocabularyTree keeps its tree, so the loaded
+ * words are found by the same lookup as before.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int MAGIC, int VERSION, int wordCount, int dimension, int treeNodes
+ * float[wordCount * dimension] centroids, float[wordCount] verificationValues
+ * if treeNodes > 0: the tree, see VocabularyTree.write
+ * </pre>
+ */
+public class VocabularyFile {
+
+	private static final int MAGIC = 0x564F4342; // "VOCB"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+
+	private final List<VisualWord> words;
+	private final VocabularyTree tree;
+
+	private VocabularyFile(List<VisualWord> words, VocabularyTree tree) {
+		this.words = words;
+		this.tree = tree;
+	}
+
+	/**
+	 * Writes the visual words and their tree, an existing file is replaced
+	 *
+	 * @param tree
+	 *            the tree whose leaves are words, null for flat words
+	 */
+	public static void write(File file, List<VisualWord> words,
+			VocabularyTree tree) throws IOException {
+		if (words.isEmpty())
+			throw new IllegalArgumentException("no visual words");
+		int dimension = words.get(0).centroied.descriptor.length;
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("can not create " + parent);
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(words.size());
+			out.writeInt(dimension);
+			out.writeInt(tree == null ? 0 : tree.nodes());
+			for (VisualWord w : words)
+				for (float v : w.centroied.descriptor)
+					out.writeFloat(v);
+			for (VisualWord w : words)
+				out.writeFloat(((Number) w.verificationValue).floatValue());
+			if (tree != null)
+				tree.write(out);
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("can not replace " + file);
+		}
+	}
+
+	/**
+	 * Maps a vocabulary file and reads its words
+	 */
+	public static VocabularyFile open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException("truncated header");
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("vocabulary too large " + file);
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new IOException("unknown file format");
+			int wordCount = buffer.getInt();
+			int dimension = buffer.getInt();
+			int treeNodes = buffer.getInt();
+			if (wordCount <= 0 || dimension <= 0 || treeNodes < 0
+					|| buffer.remaining() < 4L * wordCount * (dimension + 1))
+				throw new IOException("truncated file " + file);
+
+			float[] centroids = new float[wordCount * dimension];
+			float[] verificationValues = new float[wordCount];
+			FloatBuffer floats = buffer.asFloatBuffer();
+			floats.get(centroids);
+			floats.get(verificationValues);
+			buffer.position(buffer.position() + 4 * floats.position());
+
+			List<VisualWord> words = new ArrayList<VisualWord>(wordCount);
+			for (int c = 0; c < wordCount; c++) {
+				VisualWord word = new VisualWord();
+				float[] descriptor = new float[dimension];
+				System.arraycopy(centroids, c * dimension, descriptor, 0,
+						dimension);
+				word.centroied = new Feature(0, 0, new float[2], descriptor);
+				word.classID = c;
+				word.verificationValue = verificationValues[c];
+				words.add(word);
+			}
+
+			VocabularyTree tree = null;
+			if (treeNodes > 0)
+				tree = VocabularyTree.read(buffer, treeNodes, dimension, words);
+			return new VocabularyFile(words, tree);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the visual words, the classID is the index
+	 */
+	public List<VisualWord> words() {
+		return words;
+	}
+
+	/**
+	 * @return the vocabulary tree of the words, null if they are flat
+	 */
+	public VocabularyTree tree() {
+		return tree;
+	}
+}
@@ -0,0 +1,320 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import mpi.cbg.fly.Feature;
+
+/**
+ * A hierarchical k-means vocabulary (Nister, Stewenius: Scalable
+ * Recognition with a Vocabulary Tree, 2006).
+ *
+ * The points are clustered into branching groups by KMeans, each group
+ * again into branching groups and so on down to depth levels, the leaves
+ * are the visual words. So up to branching^depth words are learned, but a
+ * descriptor is assigned to its word by branching * depth distance
+ * computations only.
+ *
+ * The subtrees of the root are built in parallel on the pool. Each node
+ * gets its own seed derived from the seed of its parent, so the tree does
+ * not depend on the number of threads.
+ */
+public class VocabularyTree {
+
+	// a node is only split if it has this many times branching * minCount
+	// points, smaller nodes become leaves
+	private static final int SPLIT_FACTOR = 4;
+
+	// the points of a deep node may not split into branching clusters of
+	// minCount points, its k-means gives up reseeding after these rounds
+	private static final int MAX_RESEED_ROUNDS = 10;
+
+	private final int branching;
+	private final int depth;
+	private final int minCount;
+	private final int seeding;
+	private final int dim;
+
+	// the nodes in breadth first order: the centroid of node i starts at
+	// i * dim, its children are firstChild[i] ... firstChild[i] +
+	// childCount[i] - 1, word[i] is the visual word of a leaf or -1
+	private float[] centroids;
+	private int[] firstChild;
+	private int[] childCount;
+	private int[] word;
+
+	// the leaves
+	private final List<VisualWord> words;
+
+	private static class Node {
+		float[] centroid;
+		float verificationValue;
+		Node[] children;
+	}
+
+	private VocabularyTree(int branching, int depth, int minCount,
+			int seeding, int dim) {
+		this.branching = branching;
+		this.depth = depth;
+		this.minCount = minCount;
+		this.seeding = seeding;
+		this.dim = dim;
+		this.words = new ArrayList<VisualWord>();
+	}
+
+	private VocabularyTree(int branching, int depth, int dim,
+			List<VisualWord> words) {
+		this.branching = branching;
+		this.depth = depth;
+		this.minCount = 0;
+		this.seeding = KMeans.SEEDING_RANDOM;
+		this.dim = dim;
+		this.words = words;
+	}
+
+	/**
+	 * Builds a vocabulary tree
+	 *
+	 * @param points
+	 *            all found features in the training set
+	 * @param branching
+	 *            clusters per node
+	 * @param depth
+	 *            levels below the root
+	 * @param minCount
+	 *            the minimum number of members in each cluster
+	 * @param seeding
+	 *            KMeans.SEEDING_RANDOM, SEEDING_PLUS_PLUS or SEEDING_PARALLEL
+	 * @param pool
+	 *            builds the subtrees in parallel, null = sequential
+	 */
+	public static VocabularyTree build(DescriptorMatrix points,
+			int branching, int depth, int minCount, int seeding, long seed,
+			ForkJoinPool pool) {
+		VocabularyTree tree = new VocabularyTree(branching, depth, minCount,
+				seeding, points.dimension());
+		Node root = new Node();
+		tree.split(root, points, 0, seed, pool);
+		if (root.children == null)
+			throw new IllegalArgumentException("too few points for a tree: "
+					+ points.size());
+		tree.flatten(root);
+		return tree;
+	}
+
+	/**
+	 * Clusters the points of a node into its children and continues with
+	 * the children. The children of the root are split in parallel, each of
+	 * them sequentially.
+	 */
+	private void split(Node node, DescriptorMatrix points, final int level,
+			long seed, final ForkJoinPool pool) {
+		if (level == depth
+				|| points.size() < SPLIT_FACTOR * branching
+						* Math.max(1, minCount))
+			return;
+
+		KMeans kmeans = new KMeans(points, branching, minCount, seed, pool);
+		kmeans.setSeeding(seeding);
+		kmeans.setMaxReseedRounds(MAX_RESEED_ROUNDS);
+		List<VisualWord> clusters = kmeans.run();
+
+		node.children = new Node[branching];
+		float[] packed = new float[branching * dim];
+		for (int c = 0; c < branching; c++) {
+			Node child = new Node();
+			child.centroid = clusters.get(c).centroied.descriptor;
+			child.verificationValue = (Float) clusters.get(c).verificationValue;
+			node.children[c] = child;
+			System.arraycopy(child.centroid, 0, packed, c * dim, dim);
+		}
+
+		// the points of each child, by the same nearest search as lookup
+		int[] nearest = new int[points.size()];
+		int[] counts = new int[branching];
+		for (int i = 0; i < points.size(); i++) {
+			nearest[i] = nearest(points, i, packed, 0, branching, null);
+			counts[nearest[i]]++;
+		}
+		final DescriptorMatrix[] subsets = new DescriptorMatrix[branching];
+		for (int c = 0; c < branching; c++)
+			subsets[c] = new DescriptorMatrix(dim, counts[c]);
+		for (int i = 0; i < points.size(); i++)
+			subsets[nearest[i]].add(points.x[i], points.y[i],
+					points.scale[i], points.orientation[i],
+					points.descriptors, points.offset(i));
+
+		Random rnd = new Random(seed);
+		final long[] seeds = new long[branching];
+		for (int c = 0; c < branching; c++)
+			seeds[c] = rnd.nextLong();
+
+		if (pool == null || level > 0) {
+			for (int c = 0; c < branching; c++) {
+				DescriptorMatrix subset = subsets[c];
+				subsets[c] = null;
+				split(node.children[c], subset, level + 1, seeds[c], pool);
+			}
+			return;
+		}
+
+		final Node[] children = node.children;
+		KMeans.forEach(pool, branching, new KMeans.Task() {
+			public void run(int c) {
+				DescriptorMatrix subset = subsets[c];
+				subsets[c] = null;
+				split(children[c], subset, level + 1, seeds[c], null);
+			}
+		});
+	}
+
+	/**
+	 * Numbers the nodes breadth first and the leaves as visual words
+	 */
+	private void flatten(Node root) {
+		List<Node> nodes = new ArrayList<Node>();
+		nodes.add(root);
+		for (int i = 0; i < nodes.size(); i++) {
+			Node[] children = nodes.get(i).children;
+			if (children != null)
+				for (Node child : children)
+					nodes.add(child);
+		}
+
+		centroids = new float[nodes.size() * dim];
+		firstChild = new int[nodes.size()];
+		childCount = new int[nodes.size()];
+		word = new int[nodes.size()];
+		int next = 1;
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			if (node.centroid != null)
+				System.arraycopy(node.centroid, 0, centroids, i * dim, dim);
+			word[i] = -1;
+			if (node.children != null) {
+				firstChild[i] = next;
+				childCount[i] = node.children.length;
+				next += node.children.length;
+			} else {
+				word[i] = words.size();
+				VisualWord w = new VisualWord();
+				w.centroied = new Feature(0, 0, new float[2], node.centroid);
+				w.classID = word[i];
+				w.verificationValue = node.verificationValue;
+				words.add(w);
+			}
+		}
+	}
+
+	/**
+	 * Appends the nodes to a VocabularyFile:
+	 * <pre>
+	 * int branching, int depth, float[nodes * dimension] centroids,
+	 * int[nodes] firstChild, int[nodes] childCount, int[nodes] word
+	 * </pre>
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(branching);
+		out.writeInt(depth);
+		for (float v : centroids)
+			out.writeFloat(v);
+		for (int v : firstChild)
+			out.writeInt(v);
+		for (int v : childCount)
+			out.writeInt(v);
+		for (int v : word)
+			out.writeInt(v);
+	}
+
+	/**
+	 * Reads the nodes written by write
+	 * 
+	 * @param words
+	 *            the leaves, read from the VocabularyFile before
+	 */
+	static VocabularyTree read(ByteBuffer buffer, int nodes, int dim,
+			List<VisualWord> words) throws IOException {
+		if (buffer.remaining() < 8 + 4L * nodes * (dim + 3))
+			throw new IOException("truncated vocabulary tree");
+		VocabularyTree tree = new VocabularyTree(buffer.getInt(), buffer
+				.getInt(), dim, words);
+		tree.centroids = new float[nodes * dim];
+		FloatBuffer floats = buffer.asFloatBuffer();
+		floats.get(tree.centroids);
+		buffer.position(buffer.position() + 4 * floats.position());
+		tree.firstChild = new int[nodes];
+		tree.childCount = new int[nodes];
+		tree.word = new int[nodes];
+		IntBuffer ints = buffer.asIntBuffer();
+		ints.get(tree.firstChild);
+		ints.get(tree.childCount);
+		ints.get(tree.word);
+		buffer.position(buffer.position() + 4 * ints.position());
+
+		for (int i = 0; i < nodes; i++) {
+			if (tree.childCount[i] < 0
+					|| tree.childCount[i] > 0
+					&& (tree.firstChild[i] <= i || tree.firstChild[i]
+							+ tree.childCount[i] > nodes)
+					|| tree.childCount[i] == 0
+					&& (tree.word[i] < 0 || tree.word[i] >= words.size()))
+				throw new IOException("corrupt vocabulary tree node " + i);
+		}
+		return tree;
+	}
+
+	/**
+	 * @return the nearest of the count centroids in centroids starting at
+	 *         the one of index first, its distance is stored in distance[0]
+	 *         if distance is not null
+	 */
+	private int nearest(DescriptorMatrix m, int i, float[] centroids,
+			int first, int count, float[] distance) {
+		int best = first;
+		float shortest = 0;
+		for (int c = first; c < first + count; c++) {
+			float d = m.distance(i, centroids, c * dim);
+			if (c == first || d < shortest) {
+				shortest = d;
+				best = c;
+			}
+		}
+		if (distance != null)
+			distance[0] = shortest;
+		return best;
+	}
+
+	/**
+	 * Walks down the tree to the visual word of row i of a DescriptorMatrix
+	 *
+	 * @param distance
+	 *            distance[0] is set to the distance to the word
+	 * @return the classID of the visual word
+	 */
+	public int lookup(DescriptorMatrix m, int i, float[] distance) {
+		int node = 0;
+		while (childCount[node] > 0)
+			node = nearest(m, i, centroids, firstChild[node],
+					childCount[node], distance);
+		return word[node];
+	}
+
+	/**
+	 * @return the leaves as visual words, the classID is the index
+	 */
+	public List<VisualWord> words() {
+		return words;
+	}
+
+	/**
+	 * @return the number of nodes including the root
+	 */
+	public int nodes() {
+		return word.length;
+	}
+}
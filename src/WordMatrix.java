@@ -0,0 +1,198 @@
+import java.util.Arrays;
+
+/**
+ * Assigns many descriptors at once to their nearest visual words, e.g. all
+ * features of an image.
+ *
+ * The squared distances are computed as |a|^2 + |c|^2 - 2 a.c like a matrix
+ * product: a kernel computes the 16 dot products of 4 descriptors with 4
+ * words in one pass over the dimensions, each loaded value is used 4 times
+ * and the 16 sums are independent, so they do not wait for each other like
+ * the single sum of a distance loop. The words are processed in blocks of
+ * WORD_BLOCK, which stay in the cache while ROW_BLOCK descriptors are
+ * multiplied with them.
+ *
+ * The expansion loses precision for close points, so the two nearest words
+ * found this way are compared again by their exact distances. The result
+ * is the one of the linear scan of doClassifyVisualWord except for words
+ * within the rounding error of each other.
+ */
+public class WordMatrix {
+
+	// descriptors and words per block, multiples of 4
+	private static final int ROW_BLOCK = 64;
+	private static final int WORD_BLOCK = 64;
+
+	private final int k;
+	private final int dim;
+
+	// word w starts at w * dim, padded with zero words to a multiple of 4
+	private final float[] centroids;
+
+	// squared length of each word
+	private final float[] norms;
+
+	/**
+	 * @param centroids
+	 *            the words, word w starts at w * dim
+	 */
+	public WordMatrix(float[] centroids, int dim) {
+		this.dim = dim;
+		k = centroids.length / dim;
+		this.centroids = Arrays.copyOf(centroids, (k + 3) / 4 * 4 * dim);
+		norms = new float[k];
+		for (int w = 0; w < k; w++) {
+			float norm = 0;
+			for (int d = 0; d < dim; d++) {
+				float v = centroids[w * dim + d];
+				norm += v * v;
+			}
+			norms[w] = norm;
+		}
+	}
+
+	/**
+	 * Assigns the rows from .. to-1 of a DescriptorMatrix to their nearest
+	 * words
+	 *
+	 * @param words
+	 *            words[i - from] is set to the word of row i, -1 if there are
+	 *            no words
+	 * @param distances
+	 *            distances[i - from] is set to the exact distance to it
+	 */
+	public void assign(DescriptorMatrix m, int from, int to, int[] words,
+			float[] distances) {
+		float[] descriptors = m.descriptors;
+		float[] rowNorms = new float[ROW_BLOCK];
+		float[] best = new float[ROW_BLOCK];
+		float[] second = new float[ROW_BLOCK];
+		int[] bestWord = new int[ROW_BLOCK];
+		int[] secondWord = new int[ROW_BLOCK];
+		float[] dots = new float[16];
+		int padded = centroids.length / dim;
+
+		for (int r0 = from; r0 < to; r0 += ROW_BLOCK) {
+			int rows = Math.min(ROW_BLOCK, to - r0);
+			for (int r = 0; r < rows; r++) {
+				int p = m.offset(r0 + r);
+				float norm = 0;
+				for (int d = 0; d < dim; d++)
+					norm += descriptors[p + d] * descriptors[p + d];
+				rowNorms[r] = norm;
+			}
+			Arrays.fill(best, Float.MAX_VALUE);
+			Arrays.fill(second, Float.MAX_VALUE);
+			Arrays.fill(bestWord, -1);
+			Arrays.fill(secondWord, -1);
+
+			for (int w0 = 0; w0 < padded; w0 += WORD_BLOCK) {
+				int w1 = Math.min(padded, w0 + WORD_BLOCK);
+				for (int r = 0; r < rows; r += 4) {
+					// the last rows are repeated up to 4
+					int p0 = m.offset(r0 + r);
+					int p1 = m.offset(r0 + Math.min(r + 1, rows - 1));
+					int p2 = m.offset(r0 + Math.min(r + 2, rows - 1));
+					int p3 = m.offset(r0 + Math.min(r + 3, rows - 1));
+					for (int w = w0; w < w1; w += 4) {
+						dots(descriptors, p0, p1, p2, p3, w * dim, dots);
+						for (int i = 0; i < 4 && r + i < rows; i++) {
+							int row = r + i;
+							for (int j = 0; j < 4 && w + j < k; j++) {
+								float d2 = rowNorms[row] + norms[w + j] - 2
+										* dots[i * 4 + j];
+								if (d2 < best[row]) {
+									second[row] = best[row];
+									secondWord[row] = bestWord[row];
+									best[row] = d2;
+									bestWord[row] = w + j;
+								} else if (d2 < second[row]) {
+									second[row] = d2;
+									secondWord[row] = w + j;
+								}
+							}
+						}
+					}
+				}
+			}
+
+			// the exact distances of the two candidates, on a tie the lower
+			// word like the linear scan
+			for (int r = 0; r < rows; r++) {
+				int i = r0 + r;
+				int w = bestWord[r];
+				float distance = w < 0 ? 0 : m.distance(i, centroids, w * dim);
+				int s = secondWord[r];
+				if (s >= 0) {
+					float d = m.distance(i, centroids, s * dim);
+					if (d < distance || d == distance && s < w) {
+						w = s;
+						distance = d;
+					}
+				}
+				words[i - from] = w;
+				distances[i - from] = distance;
+			}
+		}
+	}
+
+	/**
+	 * The dot products of the descriptors at p0 .. p3 with the 4 words
+	 * starting at q, dots[i * 4 + j] = descriptor i . word j
+	 */
+	private void dots(float[] x, int p0, int p1, int p2, int p3, int q,
+			float[] dots) {
+		float[] c = centroids;
+		int dim = this.dim;
+		int q1 = q + dim;
+		int q2 = q1 + dim;
+		int q3 = q2 + dim;
+		float s00 = 0, s01 = 0, s02 = 0, s03 = 0;
+		float s10 = 0, s11 = 0, s12 = 0, s13 = 0;
+		float s20 = 0, s21 = 0, s22 = 0, s23 = 0;
+		float s30 = 0, s31 = 0, s32 = 0, s33 = 0;
+		for (int d = 0; d < dim; d++) {
+			float a0 = x[p0 + d], a1 = x[p1 + d], a2 = x[p2 + d], a3 = x[p3 + d];
+			float b0 = c[q + d], b1 = c[q1 + d], b2 = c[q2 + d], b3 = c[q3 + d];
+			s00 += a0 * b0;
+			s01 += a0 * b1;
+			s02 += a0 * b2;
+			s03 += a0 * b3;
+			s10 += a1 * b0;
+			s11 += a1 * b1;
+			s12 += a1 * b2;
+			s13 += a1 * b3;
+			s20 += a2 * b0;
+			s21 += a2 * b1;
+			s22 += a2 * b2;
+			s23 += a2 * b3;
+			s30 += a3 * b0;
+			s31 += a3 * b1;
+			s32 += a3 * b2;
+			s33 += a3 * b3;
+		}
+		dots[0] = s00;
+		dots[1] = s01;
+		dots[2] = s02;
+		dots[3] = s03;
+		dots[4] = s10;
+		dots[5] = s11;
+		dots[6] = s12;
+		dots[7] = s13;
+		dots[8] = s20;
+		dots[9] = s21;
+		dots[10] = s22;
+		dots[11] = s23;
+		dots[12] = s30;
+		dots[13] = s31;
+		dots[14] = s32;
+		dots[15] = s33;
+	}
+
+	/**
+	 * @return the number of words
+	 */
+	public int size() {
+		return k;
+	}
+}